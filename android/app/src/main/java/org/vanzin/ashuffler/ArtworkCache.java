@@ -0,0 +1,212 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.zip.CRC32;
+
+/**
+ * Process-wide cache of decoded album artwork.
+ * <p>
+ * Tracks in an album usually embed the same cover, so decoded bitmaps
+ * are keyed by the album folder and a hash of the embedded picture; all
+ * tracks with the same picture share one bitmap. The bitmaps are kept
+ * in an LRU cache bounded by their size in bytes.
+ * <p>
+ * Embedded covers can be much larger than what's shown on screen, so
+ * pictures are decoded for a given {@link Size}: subsampled down to
+ * roughly the size the consumer needs, and using a 16-bit config for
+ * opaque pictures (or a hardware bitmap, for the cover shown by the
+ * activity). Each size is cached separately.
+ * <p>
+ * Which picture each track has is remembered too (checked against the
+ * file's modification time), so asking again for the artwork of a known
+ * track doesn't need to open the file at all.
+ * <p>
+ * Thread-safe.
+ */
+class ArtworkCache {
+
+    /**
+     * The sizes artwork is decoded for. Pictures are subsampled by
+     * powers of two while both dimensions stay above the target.
+     */
+    enum Size {
+        /** Large icon of the playback notification. */
+        NOTIFICATION(256, false),
+        /** Media session metadata, shown by system media controls. */
+        SESSION(512, false),
+        /** The cover in the main activity. */
+        COVER(1024, true);
+
+        final int target;
+        // Hardware bitmaps are only used by views in this process;
+        // bitmaps sent to other processes need to stay in memory.
+        final boolean hardware;
+
+        Size(int target, boolean hardware) {
+            this.target = target;
+            this.hardware = hardware;
+        }
+    }
+
+    private static final int MAX_TRACKS = 256;
+    private static final int MAX_BYTES =
+        (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024);
+
+    private static final ArtworkCache INSTANCE = new ArtworkCache(MAX_BYTES, MAX_TRACKS);
+
+    static ArtworkCache get() {
+        return INSTANCE;
+    }
+
+    private final LruCache<String, Bitmap> bitmaps;
+    private final LruCache<String, TrackArt> tracks;
+
+    ArtworkCache(int maxBytes, int maxTracks) {
+        this.bitmaps = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+        this.tracks = new LruCache<>(maxTracks);
+    }
+
+    /**
+     * Returns the artwork embedded in the given track decoded for the
+     * given size, or null if it doesn't have any.
+     */
+    public Bitmap getArtwork(String path, Size size) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        long mtime = file.lastModified();
+        TrackArt known = tracks.get(path);
+        if (known != null && known.mtime == mtime) {
+            if (known.key == null) {
+                return null;
+            }
+            Bitmap bitmap = bitmaps.get(known.key + "/" + size);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        byte[] picture = readPicture(path);
+        String key = picture != null ? key(file, picture) : null;
+        tracks.put(path, new TrackArt(mtime, key));
+        if (key == null) {
+            return null;
+        }
+
+        // Another track of the same album may have decoded it already.
+        String bitmapKey = key + "/" + size;
+        Bitmap bitmap = bitmaps.get(bitmapKey);
+        if (bitmap == null) {
+            bitmap = decode(picture, size);
+            if (bitmap != null) {
+                bitmaps.put(bitmapKey, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drops all cached bitmaps.
+     */
+    public void clear() {
+        bitmaps.evictAll();
+        tracks.evictAll();
+    }
+
+    private static Bitmap decode(byte[] picture, Size size) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize(opts.outWidth, opts.outHeight, size.target);
+        if (size.hardware) {
+            opts.inPreferredConfig = Bitmap.Config.HARDWARE;
+        } else if ("image/jpeg".equals(opts.outMimeType)) {
+            // JPEG has no alpha channel, so 16 bits per pixel are enough.
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+        if (bitmap == null && size.hardware) {
+            // Not every picture can be decoded into a hardware bitmap.
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the largest power of two that the picture can be divided
+     * by while keeping both dimensions at least the target size.
+     */
+    static int sampleSize(int width, int height, int target) {
+        int sample = 1;
+        while (width / (sample * 2) >= target && height / (sample * 2) >= target) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private static byte[] readPicture(String path) {
+        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        try {
+            mmr.setDataSource(path);
+            return mmr.getEmbeddedPicture();
+        } catch (RuntimeException re) {
+            Log.warn("Cannot read artwork from %s: %s", path, re.getMessage());
+            return null;
+        } finally {
+            mmr.release();
+        }
+    }
+
+    private static String key(File file, byte[] picture) {
+        CRC32 crc = new CRC32();
+        crc.update(picture, 0, picture.length);
+        return String.format("%s#%x:%d", file.getParent(), crc.getValue(), picture.length);
+    }
+
+    private static class TrackArt {
+
+        final long mtime;
+        final String key;
+
+        TrackArt(long mtime, String key) {
+            this.mtime = mtime;
+            this.key = key;
+        }
+
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.vanzin.ashuffler.PlayerControl.Command;
+
+/**
+ * Queue of commands waiting to be run by the player's command thread.
+ * <p>
+ * Commands that arrive while the command thread is busy are merged with
+ * the last queued command when possible, so that bursts of input don't
+ * each cause a full player update:
+ *
+ * <ul>
+ *   <li>consecutive track (or folder) changes are merged into a single
+ *   change by the sum of their deltas;</li>
+ *   <li>consecutive seeks keep only the last position.</li>
+ * </ul>
+ *
+ * Only the last command in the queue is merged with, so the relative
+ * order of different commands is kept. Track completion events are never
+ * merged.
+ * <p>
+ * Commands that stop audio output (pause, stop and loss of audio focus)
+ * are urgent: they go in a separate lane that is drained before the
+ * regular commands, so they don't wait behind slow work like a folder
+ * change. If regular commands are already queued, the urgent command is
+ * also queued after them, since they might start playback again; running
+ * it twice is harmless, and the end result matches running everything in
+ * order. The exception is stop, which shuts down the player: queued
+ * regular commands are discarded (and their futures cancelled) instead,
+ * since they'd otherwise run against a released player.
+ * <p>
+ * The queue also keeps track of whether a task to drain it is pending in
+ * the command thread, so that the owner only submits one at a time.
+ * <p>
+ * Entries are pooled: once a command has run, its entry should be given
+ * back with {@link #recycle(Entry)} so that it can be reused, instead of
+ * allocating a new one for every command.
+ */
+class CommandQueue {
+
+    private static final int MAX_FREE_ENTRIES = 8;
+
+    static class Entry {
+
+        Command cmd;
+        String[] args;
+        int delta;
+
+        // Futures of the callers waiting for this command (or the ones
+        // merged into it) to run.
+        private List<CompletableFuture<TrackInfo>> futures;
+
+        boolean hasFutures() {
+            return futures != null && !futures.isEmpty();
+        }
+
+        void complete(TrackInfo info) {
+            if (futures != null) {
+                for (CompletableFuture<TrackInfo> f : futures) {
+                    f.complete(info);
+                }
+            }
+        }
+
+        void fail(Throwable error) {
+            if (futures != null) {
+                for (CompletableFuture<TrackInfo> f : futures) {
+                    f.completeExceptionally(error);
+                }
+            }
+        }
+
+        private void addFuture(CompletableFuture<TrackInfo> future) {
+            if (future != null) {
+                if (futures == null) {
+                    futures = new ArrayList<>(1);
+                }
+                futures.add(future);
+            }
+        }
+
+        private void set(Command cmd, String[] args) {
+            this.cmd = cmd;
+            this.args = args;
+            this.delta = delta(cmd);
+            if (futures != null) {
+                futures.clear();
+            }
+        }
+
+    }
+
+    private final Deque<Entry> urgent = new ArrayDeque<>();
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final Deque<Entry> free = new ArrayDeque<>();
+    private boolean drainScheduled;
+    private int merged;
+
+    /**
+     * Adds a command to the queue.
+     *
+     * @param future If not null, completed after the command runs. If the
+     *               command is merged into another, that's when the
+     *               merged command runs.
+     * @return Whether the caller needs to schedule a task to drain the
+     *         queue.
+     */
+    public synchronized boolean add(Command cmd, String[] args,
+        CompletableFuture<TrackInfo> future)
+    {
+        if (isUrgent(cmd)) {
+            Entry e = obtain(cmd, args);
+            urgent.addLast(e);
+            if (cmd == Command.STOP) {
+                cancel(entries);
+            } else if (!entries.isEmpty()) {
+                // The caller is told once the command runs in order.
+                e = obtain(cmd, args);
+                entries.addLast(e);
+            }
+            e.addFuture(future);
+            return markScheduled();
+        }
+
+        Entry last = entries.peekLast();
+        if (last != null && merge(last, cmd, args)) {
+            last.addFuture(future);
+            merged++;
+            return false;
+        }
+
+        Entry e = obtain(cmd, args);
+        e.addFuture(future);
+        entries.addLast(e);
+        return markScheduled();
+    }
+
+    /**
+     * Returns whether the command stops audio output, and thus should
+     * run ahead of other commands.
+     */
+    static boolean isUrgent(Command cmd) {
+        switch (cmd) {
+            case PAUSE:
+            case STOP:
+            case UNSET_AUDIO_FOCUS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns an entry to the pool, once its command has run.
+     */
+    public synchronized void recycle(Entry e) {
+        e.set(null, null);
+        if (free.size() < MAX_FREE_ENTRIES) {
+            free.push(e);
+        }
+    }
+
+    /**
+     * Returns the next command to run, or null if the queue is empty. In
+     * the latter case, a new drain task needs to be scheduled for the
+     * next command added.
+     */
+    public synchronized Entry poll() {
+        Entry e = urgent.pollFirst();
+        if (e == null) {
+            e = entries.pollFirst();
+        }
+        if (e == null) {
+            drainScheduled = false;
+        }
+        return e;
+    }
+
+    /**
+     * Removes all queued commands, cancelling their futures. Used when the
+     * command thread is shut down.
+     */
+    public synchronized void cancelAll() {
+        cancel(urgent);
+        cancel(entries);
+    }
+
+    private static void cancel(Deque<Entry> lane) {
+        for (Entry e : lane) {
+            if (e.futures != null) {
+                for (CompletableFuture<TrackInfo> f : e.futures) {
+                    f.cancel(false);
+                }
+            }
+        }
+        lane.clear();
+    }
+
+    /**
+     * Returns how many commands were merged into others.
+     */
+    public synchronized int getMerged() {
+        return merged;
+    }
+
+    private Entry obtain(Command cmd, String[] args) {
+        Entry e = free.poll();
+        if (e == null) {
+            e = new Entry();
+        }
+        e.set(cmd, args);
+        return e;
+    }
+
+    private boolean markScheduled() {
+        boolean schedule = !drainScheduled;
+        drainScheduled = true;
+        return schedule;
+    }
+
+    private static boolean merge(Entry last, Command cmd, String[] args) {
+        switch (cmd) {
+            case NEXT_TRACK:
+            case PREV_TRACK:
+                if (last.cmd != Command.NEXT_TRACK && last.cmd != Command.PREV_TRACK) {
+                    return false;
+                }
+                break;
+            case NEXT_FOLDER:
+            case PREV_FOLDER:
+                if (last.cmd != Command.NEXT_FOLDER && last.cmd != Command.PREV_FOLDER) {
+                    return false;
+                }
+                break;
+            case SEEK:
+                if (last.cmd != Command.SEEK) {
+                    return false;
+                }
+                last.args = args;
+                return true;
+            default:
+                return false;
+        }
+
+        last.delta += delta(cmd);
+        return true;
+    }
+
+    private static int delta(Command cmd) {
+        if (cmd == null) {
+            return 0;
+        }
+        switch (cmd) {
+            case NEXT_TRACK:
+            case NEXT_FOLDER:
+                return 1;
+            case PREV_TRACK:
+            case PREV_FOLDER:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+}
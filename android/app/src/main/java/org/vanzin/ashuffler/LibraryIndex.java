@@ -0,0 +1,303 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the music library.
+ * <p>
+ * Keeps every directory found under the music root, together with
+ * its modification time, and the names of its child directories and
+ * (sorted) tracks. The index is persisted alongside the player state
+ * using {@link #CODEC}, so that the folder and track lists can be
+ * served from memory instead of walking the storage on every album
+ * change.
+ * <p>
+ * Updates are incremental: a directory is only re-listed when its
+ * modification time changes, which happens when entries are added to
+ * or removed from it. So checking an unchanged library for updates
+ * costs one stat call per directory, instead of one per file.
+ * <p>
+ * Not thread-safe, although the directory walk done by an update may
+ * be parallelized by the {@link LibraryScanner} being used.
+ */
+class LibraryIndex {
+
+    static final StateStore.Codec<LibraryIndex> CODEC = new StateStore.Codec<LibraryIndex>() {
+
+        @Override
+        public void write(LibraryIndex index, DataOutput out) throws IOException {
+            out.writeInt(index.dirs.size());
+            for (Map.Entry<String, Dir> e : index.dirs.entrySet()) {
+                Dir dir = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(dir.mtime);
+                writeNames(out, dir.subdirs);
+                writeNames(out, dir.tracks);
+            }
+        }
+
+        @Override
+        public LibraryIndex read(DataInput in, int version) throws IOException {
+            LibraryIndex index = new LibraryIndex();
+            int count = StateStore.readCount(in);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                List<String> subdirs = readNames(in);
+                List<String> tracks = readNames(in);
+                index.dirs.put(path, new Dir(mtime, subdirs, tracks));
+            }
+            return index;
+        }
+
+        private void writeNames(DataOutput out, List<String> names) throws IOException {
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+
+        private List<String> readNames(DataInput in) throws IOException {
+            int count = StateStore.readCount(in);
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+            return names;
+        }
+
+    };
+
+    private final Map<String, Dir> dirs = new HashMap<>();
+
+    /**
+     * Updates the index by walking the tree under the given directory,
+     * re-listing only the directories that have changed since the last
+     * update. Known directories under the given one that are not found
+     * anymore are removed from the index.
+     *
+     * @return The folders that were added or removed.
+     */
+    public Diff update(File root, LibraryScanner scanner) {
+        String rootPath = root.getAbsolutePath();
+        String prefix = rootPath + File.separator;
+        Map<String, Dir> updated = new ConcurrentHashMap<>();
+        Diff diff = new Diff();
+        scanner.scan(root, dir -> updateDir(dir, updated, diff));
+
+        for (Iterator<Map.Entry<String, Dir>> it = dirs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Dir> e = it.next();
+            String path = e.getKey();
+            if (updated.containsKey(path) ||
+                !(path.equals(rootPath) || path.startsWith(prefix))) {
+                continue;
+            }
+
+            it.remove();
+            diff.changed = true;
+            if (!e.getValue().tracks.isEmpty()) {
+                diff.removed.add(path);
+            }
+        }
+
+        dirs.putAll(updated);
+        return diff;
+    }
+
+    /**
+     * Re-lists a single directory if its modification time differs
+     * from the one recorded in the index. Child directories are not
+     * visited.
+     * <p>
+     * The folder is reported as added if it now has tracks and didn't
+     * before, and as removed if it's gone or doesn't have tracks anymore.
+     * A folder that is not in the index is also reported as removed if it
+     * has no tracks, since the caller may still know it from an older
+     * listing.
+     *
+     * @return How the folder changed.
+     */
+    public Diff refresh(String path) {
+        Diff diff = new Diff();
+        Dir old = dirs.get(path);
+        File f = new File(path);
+        long mtime = f.lastModified();
+        if (old != null && old.mtime == mtime) {
+            return diff;
+        }
+
+        Dir updated = mtime != 0L ? listDir(f, mtime) : null;
+        if (updated != null) {
+            dirs.put(path, updated);
+        } else {
+            dirs.remove(path);
+        }
+        diff.changed = old != null || updated != null;
+
+        boolean hadTracks = old != null && !old.tracks.isEmpty();
+        boolean hasTracks = updated != null && !updated.tracks.isEmpty();
+        if (hasTracks && !hadTracks) {
+            diff.added.add(path);
+        } else if (!hasTracks && (hadTracks || old == null)) {
+            diff.removed.add(path);
+        }
+        return diff;
+    }
+
+    /**
+     * Returns all known directories, including the ones without tracks.
+     */
+    public Set<String> getDirectories() {
+        return Collections.unmodifiableSet(dirs.keySet());
+    }
+
+    /**
+     * Returns the folders that contain tracks.
+     */
+    public Set<String> getFolders() {
+        Set<String> folders = new HashSet<>();
+        for (Map.Entry<String, Dir> e : dirs.entrySet()) {
+            if (!e.getValue().tracks.isEmpty()) {
+                folders.add(e.getKey());
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Returns the sorted track list of a folder, or an empty list if
+     * the folder is not known.
+     */
+    public List<String> getTracks(String folder) {
+        Dir dir = dirs.get(folder);
+        return dir != null ? resolve(folder, dir.tracks) : new ArrayList<>();
+    }
+
+    /**
+     * Visitor for updates. May be called concurrently from multiple
+     * threads; the index itself is only read.
+     */
+    private List<String> updateDir(File folder, Map<String, Dir> updated, Diff diff) {
+        String path = folder.getAbsolutePath();
+        long mtime = folder.lastModified();
+        Dir old = dirs.get(path);
+        Dir dir = old;
+
+        if (old == null || old.mtime != mtime) {
+            dir = mtime != 0L ? listDir(folder, mtime) : null;
+            if (dir == null) {
+                return Collections.emptyList();
+            }
+
+            boolean hadTracks = old != null && !old.tracks.isEmpty();
+            boolean hasTracks = !dir.tracks.isEmpty();
+            synchronized (diff) {
+                diff.changed = true;
+                if (hasTracks && !hadTracks) {
+                    diff.added.add(path);
+                } else if (hadTracks && !hasTracks) {
+                    diff.removed.add(path);
+                }
+            }
+        }
+
+        updated.put(path, dir);
+        return resolve(path, dir.subdirs);
+    }
+
+    private Dir listDir(File folder, long mtime) {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return null;
+        }
+
+        List<String> subdirs = new ArrayList<>();
+        List<String> tracks = new ArrayList<>();
+        for (File f : children) {
+            if (f.isDirectory()) {
+                subdirs.add(f.getName());
+            } else if (f.isFile()) {
+                tracks.add(f.getName());
+            }
+        }
+        Collections.sort(tracks);
+        return new Dir(mtime, subdirs, tracks);
+    }
+
+    private static List<String> resolve(String parent, List<String> names) {
+        List<String> paths = new ArrayList<>(names.size());
+        for (String name : names) {
+            paths.add(parent + File.separator + name);
+        }
+        return paths;
+    }
+
+    /**
+     * Changes to the set of folders with tracks caused by an update.
+     */
+    static class Diff {
+
+        private final List<String> added = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+        private boolean changed;
+
+        public List<String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Whether anything in the index changed, including track lists
+         * of existing folders.
+         */
+        public boolean isChanged() {
+            return changed;
+        }
+
+    }
+
+    private static class Dir {
+
+        final long mtime;
+        final List<String> subdirs;
+        final List<String> tracks;
+
+        Dir(long mtime, List<String> subdirs, List<String> tracks) {
+            this.mtime = mtime;
+            this.subdirs = subdirs;
+            this.tracks = tracks;
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Strategy for walking a directory tree.
+ * <p>
+ * The scanner decides the order in which directories are visited, and
+ * from which threads; what happens on each directory is up to the
+ * {@link Visitor}, which must be thread-safe when used with a parallel
+ * scanner.
+ */
+abstract class LibraryScanner {
+
+    interface Visitor {
+
+        /**
+         * Visits a directory.
+         *
+         * @return The paths of the child directories to visit next.
+         */
+        Collection<String> visit(File dir);
+
+    }
+
+    /**
+     * Returns a scanner that visits all directories from the calling
+     * thread.
+     */
+    static LibraryScanner serial() {
+        return new SerialScanner();
+    }
+
+    /**
+     * Returns a scanner that visits sibling directories concurrently,
+     * using up to the given number of threads.
+     */
+    static LibraryScanner parallel(int parallelism) {
+        return parallelism > 1 ? new ParallelScanner(parallelism) : serial();
+    }
+
+    /**
+     * Walks the tree under the given root, returning when all
+     * directories have been visited.
+     */
+    abstract void scan(File root, Visitor visitor);
+
+    private static class SerialScanner extends LibraryScanner {
+
+        @Override
+        void scan(File root, Visitor visitor) {
+            for (String child : visitor.visit(root)) {
+                scan(new File(child), visitor);
+            }
+        }
+
+    }
+
+    private static class ParallelScanner extends LibraryScanner {
+
+        private final int parallelism;
+
+        ParallelScanner(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        void scan(File root, Visitor visitor) {
+            // The pool only lives for the duration of the scan, so that
+            // no threads are left behind once the library is loaded.
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ScanTask(root, visitor));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+    }
+
+    private static class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2871464913870245437L;
+
+        private final File dir;
+        private final Visitor visitor;
+
+        ScanTask(File dir, Visitor visitor) {
+            this.dir = dir;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            Collection<String> children = visitor.visit(dir);
+            if (children.isEmpty()) {
+                return;
+            }
+
+            List<ScanTask> tasks = new ArrayList<>(children.size());
+            for (String child : children) {
+                tasks.add(new ScanTask(new File(child), visitor));
+            }
+            invokeAll(tasks);
+        }
+
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the directories in the music library for changes.
+ * <p>
+ * Watching is not recursive: callers tell the watcher which directories
+ * to watch by calling {@link #sync(Set)}, usually with the list of
+ * directories in the {@link LibraryIndex}. Whenever an entry is created,
+ * deleted or moved in one of those directories, the listener is notified
+ * with the path of the directory, from the watcher's own thread.
+ *
+ * @param <W> The type of the per-directory watch handle.
+ */
+abstract class LibraryWatcher<W> {
+
+    interface Listener {
+
+        /**
+         * Called when the contents of a watched directory change.
+         *
+         * @param path The path of the directory that changed.
+         */
+        void directoryChanged(String path);
+
+    }
+
+    /**
+     * Creates the default watcher, based on Android's FileObserver.
+     */
+    static LibraryWatcher<?> create(Listener listener) {
+        return new ObserverWatcher(listener);
+    }
+
+    protected final Listener listener;
+    private final Map<String, W> watches = new HashMap<>();
+    private boolean closed;
+
+    protected LibraryWatcher(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Updates the set of watched directories. Directories not in the
+     * given set stop being watched.
+     */
+    public synchronized void sync(Set<String> dirs) {
+        if (closed) {
+            return;
+        }
+
+        for (Iterator<Map.Entry<String, W>> it = watches.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, W> e = it.next();
+            if (!dirs.contains(e.getKey())) {
+                unwatch(e.getValue());
+                it.remove();
+            }
+        }
+
+        for (String dir : dirs) {
+            if (watches.containsKey(dir)) {
+                continue;
+            }
+            try {
+                watches.put(dir, watch(dir));
+            } catch (IOException ioe) {
+                Log.warn("Cannot watch %s: %s", dir, ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops watching all directories.
+     */
+    public synchronized void close() {
+        for (W w : watches.values()) {
+            unwatch(w);
+        }
+        watches.clear();
+        closed = true;
+    }
+
+    protected abstract W watch(String dir) throws IOException;
+
+    protected abstract void unwatch(W handle);
+
+    /**
+     * Watcher that uses one FileObserver per directory.
+     */
+    private static class ObserverWatcher extends LibraryWatcher<FileObserver> {
+
+        private static final int EVENTS = FileObserver.CREATE |
+            FileObserver.DELETE |
+            FileObserver.MOVED_FROM |
+            FileObserver.MOVED_TO;
+
+        ObserverWatcher(Listener listener) {
+            super(listener);
+        }
+
+        @Override
+        protected FileObserver watch(final String dir) {
+            FileObserver observer = new FileObserver(new File(dir), EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    listener.directoryChanged(dir);
+                }
+            };
+            observer.startWatching();
+            return observer;
+        }
+
+        @Override
+        protected void unwatch(FileObserver observer) {
+            observer.stopWatching();
+        }
+
+    }
+
+    /**
+     * Pure Java watcher based on java.nio's WatchService. Useful for
+     * running outside of Android, e.g. in tests.
+     */
+    static class NioWatcher extends LibraryWatcher<WatchKey> implements Runnable {
+
+        private final WatchService service;
+
+        NioWatcher(Listener listener) throws IOException {
+            super(listener);
+            this.service = FileSystems.getDefault().newWatchService();
+
+            Thread t = new Thread(this, "LibraryWatcher");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        protected WatchKey watch(String dir) throws IOException {
+            return Paths.get(dir).register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        }
+
+        @Override
+        protected void unwatch(WatchKey key) {
+            key.cancel();
+        }
+
+        @Override
+        public synchronized void close() {
+            super.close();
+            try {
+                service.close();
+            } catch (IOException ioe) {
+                Log.warn("Error closing watch service: %s", ioe.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    key.pollEvents();
+                    listener.directoryChanged(((Path) key.watchable()).toString());
+                    key.reset();
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                // Watcher was closed.
+            }
+        }
+
+    }
+
+}
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.IBinder;
 import androidx.core.app.ActivityCompat;
@@ -145,7 +146,9 @@ public class Main extends Activity
         if (!fromUser || control == null) {
             return;
         }
-        control.runCommand(Command.SEEK, String.valueOf(progress));
+        // Repaint the times once the player has actually moved.
+        control.submitCommand(Command.SEEK, String.valueOf(progress))
+            .thenRun(this::updateTimesTask);
     }
 
     @Override
@@ -166,8 +169,9 @@ public class Main extends Activity
             String.format("%d.", info.getTrackNumber()));
 
         ImageView cover = (ImageView) findViewById(R.id.cover);
-        if (info.getArtwork() != null) {
-            cover.setImageBitmap(info.getArtwork());
+        Bitmap artwork = info.getArtwork(ArtworkCache.Size.COVER);
+        if (artwork != null) {
+            cover.setImageBitmap(artwork);
         } else {
             cover.setImageResource(R.drawable.nocover);
         }
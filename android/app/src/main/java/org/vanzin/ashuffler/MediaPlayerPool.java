@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.PowerManager;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A small pool of MediaPlayer instances.
+ * <p>
+ * Creating and releasing a MediaPlayer means setting up and tearing
+ * down a native player, which happens for every track otherwise. Pooled
+ * players are reset instead, which puts them back in the idle state
+ * (and drops any of their pending events), ready to be given a new data
+ * source.
+ * <p>
+ * Players handed out by the pool must be given back with
+ * {@link #recycle(MediaPlayer)} instead of being released.
+ */
+class MediaPlayerPool {
+
+    private final Context context;
+    private final int capacity;
+    private final Deque<MediaPlayer> idle = new ArrayDeque<>();
+
+    private int allocations;
+    private int reuses;
+    private boolean closed;
+
+    MediaPlayerPool(Context context, int capacity) {
+        this.context = context;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns an idle player, creating a new one if the pool is empty.
+     */
+    public synchronized MediaPlayer acquire() {
+        MediaPlayer mp = idle.poll();
+        if (mp != null) {
+            reuses++;
+            return mp;
+        }
+
+        allocations++;
+        mp = new MediaPlayer();
+        mp.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        return mp;
+    }
+
+    /**
+     * Gives a player back to the pool. The player is released if the
+     * pool is full or closed.
+     */
+    public void recycle(MediaPlayer mp) {
+        mp.setOnPreparedListener(null);
+        mp.setOnErrorListener(null);
+        mp.setOnCompletionListener(null);
+
+        synchronized (this) {
+            if (!closed && idle.size() < capacity) {
+                try {
+                    mp.reset();
+                    idle.push(mp);
+                    return;
+                } catch (RuntimeException re) {
+                    Log.warn("Cannot reset media player: %s", re.getMessage());
+                }
+            }
+        }
+        mp.release();
+    }
+
+    /**
+     * Releases all idle players. Players recycled after this are
+     * released right away.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (MediaPlayer mp : idle) {
+            mp.release();
+        }
+        idle.clear();
+        Log.debug("Media players: %d allocated, %d reused.", allocations, reuses);
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import android.media.MediaMetadataRetriever;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of track metadata.
+ * <p>
+ * Extracting tags with MediaMetadataRetriever means starting a native
+ * extractor for the file, which is slow compared to the rest of what
+ * happens when a track starts playing. This cache keeps the tags and
+ * duration of tracks that have been seen before, keyed by their path,
+ * and checked against the file's size and modification time so that
+ * edited files are read again.
+ * <p>
+ * Entries are grouped by album folder, which keeps the saved data small
+ * and makes it cheap to drop whole folders when they're removed from the
+ * library. The cache is saved with {@link #CODEC}; callers should check
+ * {@link #clearDirty()} to know whether there's anything new to save.
+ * Saving encodes a snapshot of the entries, so lookups are not blocked
+ * while the whole cache is written.
+ * <p>
+ * Thread-safe.
+ */
+class MetadataCache {
+
+    static final StateStore.Codec<MetadataCache> CODEC = new StateStore.Codec<MetadataCache>() {
+
+        @Override
+        public void write(MetadataCache cache, DataOutput out) throws IOException {
+            Map<String, Map<String, Entry>> albums = cache.snapshot();
+            out.writeInt(albums.size());
+            for (Map.Entry<String, Map<String, Entry>> album : albums.entrySet()) {
+                out.writeUTF(album.getKey());
+                out.writeInt(album.getValue().size());
+                for (Map.Entry<String, Entry> track : album.getValue().entrySet()) {
+                    Entry e = track.getValue();
+                    out.writeUTF(track.getKey());
+                    out.writeLong(e.size);
+                    out.writeLong(e.mtime);
+                    StateStore.writeString(out, e.title);
+                    StateStore.writeString(out, e.album);
+                    StateStore.writeString(out, e.artist);
+                    out.writeInt(e.trackNumber);
+                    out.writeInt(e.discNumber);
+                    out.writeInt(e.duration);
+                }
+            }
+        }
+
+        @Override
+        public MetadataCache read(DataInput in, int version) throws IOException {
+            MetadataCache cache = new MetadataCache();
+            int albumCount = StateStore.readCount(in);
+            for (int i = 0; i < albumCount; i++) {
+                String folder = in.readUTF();
+                int trackCount = StateStore.readCount(in);
+                Map<String, Entry> tracks = new HashMap<>(trackCount * 2);
+                for (int j = 0; j < trackCount; j++) {
+                    String name = in.readUTF();
+                    Entry e = new Entry();
+                    e.size = in.readLong();
+                    e.mtime = in.readLong();
+                    e.title = StateStore.readString(in);
+                    e.album = StateStore.readString(in);
+                    e.artist = StateStore.readString(in);
+                    e.trackNumber = in.readInt();
+                    e.discNumber = in.readInt();
+                    e.duration = in.readInt();
+                    tracks.put(name, e);
+                }
+                cache.albums.put(folder, tracks);
+            }
+            return cache;
+        }
+
+    };
+
+    private final Map<String, Map<String, Entry>> albums = new HashMap<>();
+    private int changes;
+    private int hits;
+    private int misses;
+
+    /**
+     * Returns the info for the given track, from the cache if it's up to
+     * date, otherwise by reading the track's tags (and caching them).
+     *
+     * @return A new TrackInfo instance, or null if the tags can't be read.
+     */
+    public TrackInfo load(String path) {
+        TrackInfo info = get(path);
+        if (info != null) {
+            return info;
+        }
+
+        info = extract(path);
+        if (info != null) {
+            put(info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the cached info for the given track, or null if it's not
+     * cached or the file has changed since.
+     */
+    public synchronized TrackInfo get(String path) {
+        Entry e = lookup(path);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return new TrackInfo(path, e.title, e.album, e.artist, e.trackNumber,
+            e.discNumber, e.duration);
+    }
+
+    /**
+     * Reads the tags of the given tracks (normally a whole album) that
+     * are not cached yet, in one pass. Meant to be called from a
+     * background thread when an album is selected, so that by the time
+     * players are created for its tracks their metadata is cached.
+     * <p>
+     * Stops early if the calling thread is interrupted.
+     *
+     * @return How many tracks had their tags read.
+     */
+    public int loadAll(List<String> tracks) {
+        int loaded = 0;
+        for (String path : tracks) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            synchronized (this) {
+                if (lookup(path) != null) {
+                    continue;
+                }
+            }
+
+            TrackInfo info = extract(path);
+            if (info != null) {
+                put(info);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Adds the given track info to the cache. Info without a duration is
+     * not cached, so that the tags are read again later instead of the
+     * track being stuck with an unknown length.
+     */
+    public synchronized void put(TrackInfo info) {
+        if (info.getDuration() <= 0) {
+            return;
+        }
+
+        String path = info.getPath();
+        BasicFileAttributes attrs = stat(path);
+        if (attrs == null) {
+            return;
+        }
+
+        Entry e = new Entry();
+        e.size = attrs.size();
+        e.mtime = attrs.lastModifiedTime().toMillis();
+        e.title = info.getTitle();
+        e.album = info.getAlbum();
+        e.artist = info.getArtist();
+        e.trackNumber = info.getTrackNumber();
+        e.discNumber = info.getDiscNumber();
+        e.duration = info.getDuration();
+
+        int sep = path.lastIndexOf(File.separatorChar);
+        albums.computeIfAbsent(path.substring(0, sep), k -> new HashMap<>())
+            .put(path.substring(sep + 1), e);
+        changes++;
+    }
+
+    /**
+     * Drops the cached data for tracks in the given folders.
+     */
+    public synchronized void removeFolders(Collection<String> folders) {
+        for (String folder : folders) {
+            if (albums.remove(folder) != null) {
+                changes++;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the cache was modified since the last call.
+     */
+    public synchronized boolean clearDirty() {
+        boolean result = changes > 0;
+        changes = 0;
+        return result;
+    }
+
+    /**
+     * Returns how many changes were made to the cache since the last call
+     * to {@link #clearDirty()}.
+     */
+    public synchronized int getChanges() {
+        return changes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Reads the track's tags. The duration is taken from the metadata
+     * too, so that the track doesn't need to be prepared for playback;
+     * it may be 0 if the metadata doesn't have it.
+     * <p>
+     * Tags are read with {@link TagReader} when possible, falling back to
+     * MediaMetadataRetriever for files it can't handle.
+     */
+    static TrackInfo extract(String path) {
+        TrackInfo info = TagReader.read(path);
+        if (info != null) {
+            return info;
+        }
+
+        MediaMetadataRetriever md = new MediaMetadataRetriever();
+        try {
+            md.setDataSource(path);
+            return new TrackInfo(path, md);
+        } catch (RuntimeException re) {
+            Log.warn("Cannot read metadata from %s: %s", path, re.getMessage());
+            return null;
+        } finally {
+            md.release();
+        }
+    }
+
+    /**
+     * Finds the entry for the given track, dropping it if the file has
+     * changed since it was cached.
+     */
+    private Entry lookup(String path) {
+        int sep = path.lastIndexOf(File.separatorChar);
+        Map<String, Entry> album = albums.get(path.substring(0, sep));
+        Entry e = album != null ? album.get(path.substring(sep + 1)) : null;
+        if (e == null) {
+            return null;
+        }
+
+        BasicFileAttributes attrs = stat(path);
+        if (attrs == null ||
+            attrs.size() != e.size ||
+            attrs.lastModifiedTime().toMillis() != e.mtime) {
+            album.remove(path.substring(sep + 1));
+            changes++;
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Copies the album maps, so that they can be encoded without holding
+     * the lock. Entries are not modified once added, so they're shared.
+     */
+    private synchronized Map<String, Map<String, Entry>> snapshot() {
+        Map<String, Map<String, Entry>> copy = new HashMap<>(albums.size() * 2);
+        for (Map.Entry<String, Map<String, Entry>> album : albums.entrySet()) {
+            copy.put(album.getKey(), new HashMap<>(album.getValue()));
+        }
+        return copy;
+    }
+
+    private static BasicFileAttributes stat(String path) {
+        try {
+            return Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+
+        long size;
+        long mtime;
+        String title;
+        String album;
+        String artist;
+        int trackNumber;
+        int discNumber;
+        int duration;
+
+    }
+
+}
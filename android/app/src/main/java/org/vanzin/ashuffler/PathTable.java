@@ -0,0 +1,263 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table of interned paths.
+ * <p>
+ * Each path is stored as the id of its parent directory plus its own
+ * name, and is identified by an integer id. Since paths in the library
+ * share long prefixes (storage root, music directory, artist folder),
+ * this takes a lot less space than keeping full path strings around.
+ * <p>
+ * Ids are stable until the table is compacted with {@link #compact(BitSet)},
+ * which drops paths that are not used anymore. Only absolute paths are
+ * supported. Not thread-safe.
+ */
+class PathTable {
+
+    /** Id of the root directory. */
+    static final int ROOT = 0;
+
+    private static final char SEPARATOR = '/';
+
+    // Compaction thresholds: a quarter of the table, and a minimum number
+    // of entries so that small tables are not compacted all the time.
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_UNUSED = 64;
+
+    private int size;
+    private int[] parents;
+    private String[] names;
+    private Map<Segment, Integer> lookup;
+
+    PathTable() {
+        this.parents = new int[64];
+        this.names = new String[64];
+        this.parents[ROOT] = -1;
+        this.names[ROOT] = "";
+        this.size = 1;
+    }
+
+    static PathTable readFrom(DataInput in) throws IOException {
+        PathTable table = new PathTable();
+        table.readEntries(in);
+        return table;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        StateStore.writeInts(out, parents, size);
+        for (int i = ROOT + 1; i < size; i++) {
+            out.writeUTF(names[i]);
+        }
+    }
+
+    /**
+     * Returns the id of the given path, adding it to the table if
+     * needed.
+     */
+    public int intern(String path) {
+        int id = ROOT;
+        int start = 0;
+        while (start < path.length()) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                String name = path.substring(start, end);
+                Integer child = lookup().get(new Segment(id, name));
+                id = child != null ? child : add(id, name);
+            }
+            start = end + 1;
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the given path, or -1 if it's not in the table.
+     */
+    public int find(String path) {
+        int id = ROOT;
+        int start = 0;
+        while (start < path.length()) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                Integer child = lookup().get(new Segment(id, path.substring(start, end)));
+                if (child == null) {
+                    return -1;
+                }
+                id = child;
+            }
+            start = end + 1;
+        }
+        return id;
+    }
+
+    /**
+     * Returns the full path with the given id.
+     */
+    public String get(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(id));
+        }
+        if (id == ROOT) {
+            return String.valueOf(SEPARATOR);
+        }
+
+        int len = 0;
+        for (int i = id; i != ROOT; i = parents[i]) {
+            len += names[i].length() + 1;
+        }
+
+        char[] path = new char[len];
+        int pos = len;
+        for (int i = id; i != ROOT; i = parents[i]) {
+            String name = names[i];
+            pos -= name.length();
+            name.getChars(0, name.length(), path, pos);
+            path[--pos] = SEPARATOR;
+        }
+        return new String(path);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops the paths that are neither in the given set nor parents of
+     * paths in it, if they make up a large enough part of the table. Ids
+     * of the remaining paths change, but keep their relative order.
+     *
+     * @return A map from old to new ids (-1 for dropped paths), or null
+     *         if the table was not changed.
+     */
+    public int[] compact(BitSet used) {
+        BitSet keep = (BitSet) used.clone();
+        keep.set(ROOT);
+        // Parents always have lower ids than their children, so a single
+        // backwards pass marks all the parents of used paths.
+        for (int i = size - 1; i > ROOT; i--) {
+            if (keep.get(i)) {
+                keep.set(parents[i]);
+            }
+        }
+        int unused = size - keep.cardinality();
+        if (unused < COMPACT_MIN_UNUSED || unused < size / COMPACT_RATIO) {
+            return null;
+        }
+
+        int[] remap = new int[size];
+        int count = 0;
+        for (int i = ROOT; i < size; i++) {
+            if (!keep.get(i)) {
+                remap[i] = -1;
+                continue;
+            }
+            remap[i] = count;
+            parents[count] = i == ROOT ? -1 : remap[parents[i]];
+            names[count] = names[i];
+            count++;
+        }
+        Arrays.fill(names, count, size, null);
+        size = count;
+        lookup = null;
+        return remap;
+    }
+
+    private int add(int parent, String name) {
+        if (size == parents.length) {
+            parents = Arrays.copyOf(parents, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+        }
+        int id = size++;
+        parents[id] = parent;
+        names[id] = name;
+        lookup().put(new Segment(parent, name), id);
+        return id;
+    }
+
+    private Map<Segment, Integer> lookup() {
+        if (lookup == null) {
+            lookup = new HashMap<>(size * 2);
+            for (int i = ROOT + 1; i < size; i++) {
+                lookup.put(new Segment(parents[i], names[i]), i);
+            }
+        }
+        return lookup;
+    }
+
+    private static int nextSeparator(String path, int start) {
+        int idx = path.indexOf(SEPARATOR, start);
+        return idx >= 0 ? idx : path.length();
+    }
+
+    private void readEntries(DataInput in) throws IOException {
+        int[] parents = StateStore.readInts(in);
+        int count = parents.length;
+        if (count < 1 || parents[ROOT] != -1) {
+            throw new IOException("Invalid path table.");
+        }
+
+        String[] names = new String[count];
+        names[ROOT] = "";
+        for (int i = ROOT + 1; i < count; i++) {
+            int parent = parents[i];
+            if (parent < 0 || parent >= i) {
+                throw new IOException("Invalid path table entry: " + parent);
+            }
+            names[i] = in.readUTF();
+        }
+
+        this.parents = parents;
+        this.names = names;
+        this.size = count;
+        this.lookup = null;
+    }
+
+    private static class Segment {
+
+        final int parent;
+        final String name;
+
+        Segment(int parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Segment)) {
+                return false;
+            }
+            Segment other = (Segment) o;
+            return parent == other.parent && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * parent + name.hashCode();
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the playback position.
+ * <p>
+ * Each record holds a track id (from the {@link PlayerState}'s path
+ * table), the position in the track and a timestamp. Appending a record
+ * is a single small write to the end of the file, which is a lot cheaper
+ * than saving the track info, and survives the process being killed.
+ * <p>
+ * Records are checksummed; if the last one was only partially written,
+ * it's discarded when the journal is opened. The owner is expected to
+ * periodically save the position somewhere else and {@link #reset()}
+ * the journal, so that it doesn't grow forever.
+ */
+class PlaybackJournal {
+
+    private static final int RECORD_SIZE = 20;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private Record last;
+    private int size;
+
+    PlaybackJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the last valid record in the journal, or null if it's
+     * empty.
+     */
+    public synchronized Record last() {
+        open();
+        return last;
+    }
+
+    /**
+     * Returns the number of records in the journal.
+     */
+    public synchronized int size() {
+        open();
+        return size;
+    }
+
+    public synchronized void append(int trackId, int position) {
+        if (open() == null) {
+            return;
+        }
+
+        Record record = new Record(trackId, position, System.currentTimeMillis());
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+        buf.putInt(record.trackId)
+            .putInt(record.position)
+            .putLong(record.timestamp);
+        buf.putInt(checksum(buf.array()));
+
+        try {
+            raf.seek((long) size * RECORD_SIZE);
+            raf.write(buf.array());
+            last = record;
+            size++;
+        } catch (IOException ioe) {
+            Log.warn("Cannot append to journal: %s", ioe.getMessage());
+        }
+    }
+
+    /**
+     * Discards all records.
+     */
+    public synchronized void reset() {
+        if (open() == null) {
+            return;
+        }
+
+        try {
+            raf.setLength(0);
+            last = null;
+            size = 0;
+        } catch (IOException ioe) {
+            Log.warn("Cannot reset journal: %s", ioe.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                Log.warn("Error closing journal: %s", ioe.getMessage());
+            }
+            raf = null;
+        }
+    }
+
+    /**
+     * Opens the journal if needed, reading the existing records and
+     * truncating any invalid data at the end of the file.
+     */
+    private RandomAccessFile open() {
+        if (raf != null) {
+            return raf;
+        }
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+
+            byte[] data = new byte[(int) Math.min(raf.length(), Integer.MAX_VALUE)];
+            raf.readFully(data);
+
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            byte[] record = new byte[RECORD_SIZE];
+            size = 0;
+            last = null;
+            while (buf.remaining() >= RECORD_SIZE) {
+                buf.get(record);
+                ByteBuffer rbuf = ByteBuffer.wrap(record);
+                int trackId = rbuf.getInt();
+                int position = rbuf.getInt();
+                long timestamp = rbuf.getLong();
+                if (rbuf.getInt() != checksum(record)) {
+                    break;
+                }
+                last = new Record(trackId, position, timestamp);
+                size++;
+            }
+
+            if (raf.length() != (long) size * RECORD_SIZE) {
+                Log.info("Discarding invalid data at end of journal.");
+                raf.setLength((long) size * RECORD_SIZE);
+            }
+        } catch (IOException ioe) {
+            Log.warn("Cannot open journal: %s", ioe.getMessage());
+            close();
+        }
+        return raf;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, RECORD_SIZE - Integer.BYTES);
+        return (int) crc.getValue();
+    }
+
+    static class Record {
+
+        private final int trackId;
+        private final int position;
+        private final long timestamp;
+
+        Record(int trackId, int position, long timestamp) {
+            this.trackId = trackId;
+            this.position = position;
+            this.timestamp = timestamp;
+        }
+
+        public int getTrackId() {
+            return trackId;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+    }
+
+}
@@ -16,9 +16,7 @@
 package org.vanzin.ashuffler;
 
 import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
-import android.os.PowerManager;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -26,66 +24,119 @@ import android.support.v4.media.session.PlaybackStateCompat;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Encapsulate Android's MediaPlayer and provides thread-safe
  * functionality around it.
+ * <p>
+ * Players are prepared asynchronously, so that calls from the command
+ * thread never wait for the media to be loaded. Requests to start or
+ * seek playback made while preparing are remembered, and applied when
+ * the platform reports that the player is prepared. Since the command
+ * thread has no looper, those callbacks arrive in the main thread; they
+ * only drive the MediaPlayer, and post the updates to the media session
+ * and the listeners to the command executor.
+ * <p>
+ * Playback is gapless when a next track is set: the next MediaPlayer is
+ * chained to the current one, so the platform starts it as soon as the
+ * current track ends. When that happens this object takes over the next
+ * player and keeps representing the playing track, and
+ * {@link #consumeHandOff()} returns true so that the owner knows it only
+ * needs to update its own state, and publish the new track with
+ * {@link #publishTrack()}.
  */
 public class Player {
 
     private enum State {
         NEW,
+        PREPARING,
         PREPARED,
         RELEASED;
     }
 
     private State state;
+    private MediaPlayer current;
+    private String track;
     private MediaPlayer next;
     private String nextTrack;
     private TrackInfo info;
     private TrackInfo nextInfo;
+    private boolean nextPrepared;
     private boolean isMetadataSet;
+    private boolean chained;
+    private boolean handedOff;
+    private boolean failed;
+    private boolean silenced;
+    private boolean pendingStart;
+    private int pendingSeek = -1;
+    private Player successor;
+    private MediaPlayer.OnCompletionListener completionListener;
 
     private final List<PlayerListener> listeners;
-    private final MediaPlayer current;
-    private final String track;
     private final PlayerService service;
+    private final MediaPlayerPool pool;
+    private final MetadataCache metadata;
     private final MediaSessionCompat session;
+    private final Executor executor;
     private final PlaybackStateCompat.Builder playbackState;
 
     public Player(PlayerService service,
+        MediaPlayerPool pool,
+        MetadataCache metadata,
         MediaSessionCompat session,
+        Executor executor,
         String track,
         TrackInfo info,
         List<PlayerListener> listeners) throws IOException
     {
         this.service = service;
+        this.pool = pool;
+        this.metadata = metadata;
         this.session = session;
+        this.executor = executor;
         this.playbackState = new PlaybackStateCompat.Builder();
         this.state = State.NEW;
-        this.current = new MediaPlayer();
-        this.current.setWakeMode(service, PowerManager.PARTIAL_WAKE_LOCK);
-        this.current.setDataSource(track);
+        this.current = createPlayer(track, this::onPrepared, this::onError);
+        this.current.setOnCompletionListener(this::onCompletion);
         this.track = track;
         this.listeners = listeners;
         this.info = info;
     }
 
     private Player(PlayerService service,
+        MediaPlayerPool pool,
+        MetadataCache metadata,
         MediaSessionCompat session,
+        Executor executor,
         MediaPlayer player,
         String track,
         TrackInfo info,
+        boolean prepared,
         List<PlayerListener> listeners)
     {
         this.service = service;
+        this.pool = pool;
+        this.metadata = metadata;
         this.session = session;
+        this.executor = executor;
         this.playbackState = new PlaybackStateCompat.Builder();
         this.current = player;
+        this.current.setOnPreparedListener(this::onPrepared);
+        this.current.setOnErrorListener(this::onError);
+        this.current.setOnCompletionListener(this::onCompletion);
         this.track = track;
         this.info = info;
         this.listeners = listeners;
-        this.state = State.PREPARED;
+        this.state = prepared ? State.PREPARED : State.PREPARING;
+    }
+
+    /**
+     * Returns the path of the track being played.
+     */
+    public synchronized String getTrack() {
+        return track;
     }
 
     public synchronized boolean isValid() {
@@ -93,10 +144,37 @@ public class Player {
     }
 
     public synchronized void pause() {
-        if (current.isPlaying()) {
-            current.pause();
-            updateSessionState(PlaybackStateCompat.STATE_PAUSED, getInfo().getElapsedTime());
-            fireTrackStateChange(PlayerListener.TrackState.PAUSE);
+        if (state == State.PREPARED && (current.isPlaying() || silenced)) {
+            pausePlayback();
+        } else if (state == State.PREPARING && (pendingStart || silenced)) {
+            // Don't start playing once prepared.
+            pendingStart = false;
+            silenced = false;
+            publishPending();
+        }
+    }
+
+    /**
+     * Stops audio output right away, without updating the media session
+     * or notifying listeners. Meant to be called from outside the command
+     * thread; the player keeps reporting that it's playing until the
+     * command that pauses or stops it runs.
+     */
+    public synchronized void silence() {
+        switch (state) {
+        case PREPARING:
+            if (pendingStart) {
+                pendingStart = false;
+                silenced = true;
+            }
+            break;
+        case PREPARED:
+            if (current.isPlaying()) {
+                current.pause();
+                silenced = true;
+            }
+            break;
+        default:
         }
     }
 
@@ -105,32 +183,26 @@ public class Player {
             throw new IllegalStateException();
         }
 
-        try {
-            prepare();
-        } catch (IOException ioe) {
-            Log.warn("Error preparing playback: %s",
-                ioe.getMessage());
-        }
-
-        if (startPos != 0) {
-            current.seekTo(startPos);
+        if (state != State.PREPARED) {
+            pendingStart = true;
+            pendingSeek = startPos;
+            prepareAsync();
+            return;
         }
-        current.start();
-        updateSessionState(PlaybackStateCompat.STATE_PLAYING, startPos);
-        fireTrackStateChange(PlayerListener.TrackState.PLAY);
+        start(startPos);
     }
 
     public synchronized void playPause() {
-        try {
-            prepare();
-        } catch (IOException ioe) {
-            Log.warn("Error preparing playback: %s",
-                ioe.getMessage());
+        if (state != State.PREPARED) {
+            pendingStart = !(pendingStart || silenced);
+            silenced = false;
+            prepareAsync();
+            publishPending();
+            return;
         }
-        if (current.isPlaying()) {
-            current.pause();
-            updateSessionState(PlaybackStateCompat.STATE_PAUSED, getInfo().getElapsedTime());
-            fireTrackStateChange(PlayerListener.TrackState.PAUSE);
+
+        if (current.isPlaying() || silenced) {
+            pausePlayback();
         } else {
             current.start();
             updateSessionState(PlaybackStateCompat.STATE_PLAYING, getInfo().getElapsedTime());
@@ -139,63 +211,159 @@ public class Player {
     }
 
     public synchronized void stop() {
-        if (isPlaying()) {
+        pendingStart = false;
+        if (state == State.PREPARED && (current.isPlaying() || silenced)) {
             current.stop();
             updateSessionState(PlaybackStateCompat.STATE_STOPPED, 0L);
             fireTrackStateChange(PlayerListener.TrackState.STOP);
         }
+        silenced = false;
     }
 
     public synchronized Player release() {
         stop();
-        current.release();
+        pool.recycle(current);
         state = State.RELEASED;
 
         if (next != null) {
-            return new Player(service, session, next, nextTrack,
-                nextInfo, listeners);
+            successor = new Player(service, pool, metadata, session, executor, next,
+                nextTrack, nextInfo, nextPrepared, listeners);
+            next = null;
+            nextTrack = null;
+            nextInfo = null;
+            return successor;
         }
         return null;
     }
 
+    /**
+     * Starts preparing the given track to be played after the current
+     * one. Returns without waiting for the preparation to finish.
+     */
     public synchronized void setNext(String track) throws IOException {
-        MediaPlayer next = new MediaPlayer();
-        next.setWakeMode(service, PowerManager.PARTIAL_WAKE_LOCK);
-        next.setDataSource(track);
-        next.prepare();
-        nextInfo = loadInfo(track, next);
+        MediaPlayer next = createPlayer(track, this::onNextPrepared, this::onNextError);
+        if (this.next != null) {
+            if (chained) {
+                current.setNextMediaPlayer(null);
+            }
+            pool.recycle(this.next);
+        }
         this.next = next;
         this.nextTrack = track;
+        this.nextInfo = metadata.load(track);
+        this.nextPrepared = false;
+        this.chained = false;
+        next.prepareAsync();
+    }
+
+    /**
+     * Returns whether playback moved on to the next track by itself since
+     * the last call, and clears that flag.
+     */
+    public synchronized boolean consumeHandOff() {
+        boolean result = handedOff;
+        handedOff = false;
+        return result;
     }
 
+    /**
+     * Publishes the playing track to the media session and the listeners.
+     * Meant to be called from the command thread after a hand-off.
+     */
+    public synchronized void publishTrack() {
+        if (state == State.PREPARED && current.isPlaying()) {
+            updateSessionState(PlaybackStateCompat.STATE_PLAYING, getInfo().getElapsedTime());
+            fireTrackStateChange(PlayerListener.TrackState.PLAY);
+        }
+    }
+
+    /**
+     * Returns the info of the playing track. If its tags can't be read,
+     * or they don't have the duration, the info is built from what the
+     * MediaPlayer knows once it's prepared.
+     */
     public synchronized TrackInfo getInfo() {
         if (info == null) {
-            try {
-                prepare();
-            } catch (IOException ioe) {
-                Log.warn("Exception preparing: %s", ioe.getMessage());
-                return null;
+            info = metadata.load(track);
+            if (info == null) {
+                info = new TrackInfo(track, new File(track).getName(), null, null, 1, -1, 0);
             }
-            info = loadInfo(track, current);
         }
         if (state == State.PREPARED) {
-          info.setElapsedTime(current.getCurrentPosition());
+            int duration = current.getDuration();
+            if (info.getDuration() <= 0 && duration > 0) {
+                info = info.withDuration(duration);
+            }
+            info.setElapsedTime(current.getCurrentPosition());
         }
         return info;
     }
 
     public synchronized void seekTo(int newPos) {
-        current.seekTo(newPos);
+        if (state == State.PREPARED) {
+            current.seekTo(newPos);
+        } else {
+            pendingSeek = newPos;
+        }
     }
 
     public synchronized void setOnCompletionListener(
         MediaPlayer.OnCompletionListener listener)
     {
-        current.setOnCompletionListener(listener);
+        this.completionListener = listener;
     }
 
+    /**
+     * Returns whether media is playing, or will start playing as soon as
+     * it's prepared. A player that was silenced still counts as playing.
+     */
     public synchronized boolean isPlaying() {
-        return state == State.PREPARED && current.isPlaying();
+        switch (state) {
+        case PREPARING:
+            return pendingStart || silenced;
+        case PREPARED:
+            return current.isPlaying() || silenced;
+        default:
+            return false;
+        }
+    }
+
+    private void start(int startPos) {
+        if (startPos > 0) {
+            current.seekTo(startPos);
+        }
+        current.start();
+        updateSessionState(PlaybackStateCompat.STATE_PLAYING, Math.max(startPos, 0));
+        fireTrackStateChange(PlayerListener.TrackState.PLAY);
+    }
+
+    /**
+     * Publishes whether a player that is still being prepared will start
+     * playing once it's prepared, so that the session and listeners don't
+     * show the old state in the meantime.
+     */
+    private void publishPending() {
+        int position = getInfo().getElapsedTime();
+        if (pendingStart) {
+            updateSessionState(PlaybackStateCompat.STATE_PLAYING, position);
+            fireTrackStateChange(PlayerListener.TrackState.PLAY);
+        } else {
+            updateSessionState(PlaybackStateCompat.STATE_PAUSED, position);
+            fireTrackStateChange(PlayerListener.TrackState.PAUSE);
+        }
+    }
+
+    /**
+     * Pauses the player, which may have been silenced already, and
+     * publishes the new state.
+     */
+    private void pausePlayback() {
+        if (current.isPlaying()) {
+            current.pause();
+        }
+        silenced = false;
+        updateSessionState(PlaybackStateCompat.STATE_PAUSED, getInfo().getElapsedTime());
+        fireTrackStateChange(PlayerListener.TrackState.PAUSE);
     }
 
     private void updateSessionState(int state, long position) {
@@ -226,7 +394,7 @@ public class Player {
                 .putLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, info.getTrackNumber());
 
 
-            Bitmap artwork = info.getArtwork();
+            Bitmap artwork = info.getArtwork(ArtworkCache.Size.SESSION);
             if (artwork != null) {
                 mb.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, artwork);
             }
@@ -236,31 +404,171 @@ public class Player {
         }
     }
 
-    private void prepare() throws IOException {
+    private void prepareAsync() {
         switch (state) {
         case RELEASED:
             throw new IllegalStateException();
-        case PREPARED:
+        case NEW:
+            current.prepareAsync();
+            state = State.PREPARING;
+            break;
+        default:
+        }
+    }
+
+    private MediaPlayer createPlayer(String track,
+        MediaPlayer.OnPreparedListener preparedListener,
+        MediaPlayer.OnErrorListener errorListener) throws IOException
+    {
+        MediaPlayer mp = pool.acquire();
+        mp.setOnPreparedListener(preparedListener);
+        mp.setOnErrorListener(errorListener);
+        try {
+            mp.setDataSource(track);
+        } catch (IOException ioe) {
+            pool.recycle(mp);
+            throw ioe;
+        }
+        return mp;
+    }
+
+    /**
+     * Chains the next player to the current one, once both are prepared.
+     */
+    private void chainNext() {
+        if (next != null && nextPrepared && !chained && state == State.PREPARED) {
+            current.setNextMediaPlayer(next);
+            chained = true;
+        }
+    }
+
+    private synchronized void onPrepared(MediaPlayer mp) {
+        if (mp != current || state != State.PREPARING) {
             return;
         }
-        current.prepare();
+
         state = State.PREPARED;
+        chainNext();
 
-        if (info == null) {
-            info = loadInfo(track, current);
+        int seek = pendingSeek;
+        pendingSeek = -1;
+        if (seek > 0) {
+            current.seekTo(seek);
+        }
+        if (pendingStart) {
+            pendingStart = false;
+            current.start();
+            publishLater(mp);
         }
     }
 
-    private TrackInfo loadInfo(String track, MediaPlayer mp) {
-        MediaMetadataRetriever md = new MediaMetadataRetriever();
+    /**
+     * Publishes the track from the command executor, if the given player
+     * is still the current one by then.
+     */
+    private void publishLater(MediaPlayer mp) {
         try {
-            md.setDataSource(track);
-            return new TrackInfo(track, md, mp.getDuration());
-        } finally {
-            md.release();
+            executor.execute(() -> {
+                synchronized (this) {
+                    if (mp == current) {
+                        publishTrack();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Shutting down, the session is gone.
         }
     }
 
+    private synchronized boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == current) {
+            Log.warn("Error playing %s: %d / %d", track, what, extra);
+            pendingStart = false;
+            failed = true;
+        }
+        // Let the completion listener move on to the next track.
+        return false;
+    }
+
+    private void onNextPrepared(MediaPlayer mp) {
+        Player successor;
+        synchronized (this) {
+            if (mp == next) {
+                nextPrepared = true;
+                chainNext();
+                return;
+            }
+            successor = this.successor;
+        }
+
+        // The next player was handed over to a new Player before it was
+        // prepared.
+        if (successor != null) {
+            successor.onPrepared(mp);
+        }
+    }
+
+    private boolean onNextError(MediaPlayer mp, int what, int extra) {
+        Player successor;
+        synchronized (this) {
+            if (mp == next) {
+                Log.warn("Error preparing %s: %d / %d", nextTrack, what, extra);
+                if (chained) {
+                    current.setNextMediaPlayer(null);
+                }
+                pool.recycle(next);
+                next = null;
+                nextTrack = null;
+                nextInfo = null;
+                chained = false;
+                return true;
+            }
+            successor = this.successor;
+        }
+
+        return successor != null && successor.onError(mp, what, extra);
+    }
+
+    private void onCompletion(MediaPlayer mp) {
+        MediaPlayer.OnCompletionListener listener;
+        synchronized (this) {
+            // After an error the platform doesn't start the chained player,
+            // so leave it to the owner to move on to the next track.
+            if (mp == current && chained && !failed) {
+                handOff();
+            }
+            listener = completionListener;
+        }
+
+        if (listener != null) {
+            listener.onCompletion(mp);
+        }
+    }
+
+    /**
+     * Takes over the next player, which the platform has already started.
+     * This runs in the platform's callback, so it only swaps the players;
+     * the owner publishes the new track with {@link #publishTrack()}.
+     */
+    private void handOff() {
+        MediaPlayer finished = current;
+        current = next;
+        track = nextTrack;
+        info = nextInfo;
+        next = null;
+        nextTrack = null;
+        nextInfo = null;
+        nextPrepared = false;
+        chained = false;
+        handedOff = true;
+        failed = false;
+        isMetadataSet = false;
+
+        current.setOnPreparedListener(this::onPrepared);
+        current.setOnErrorListener(this::onError);
+        current.setOnCompletionListener(this::onCompletion);
+        pool.recycle(finished);
+    }
 
     private void fireTrackStateChange(PlayerListener.TrackState newState) {
         TrackInfo updated = getInfo();
@@ -272,4 +580,3 @@ public class Player {
     }
 
 }
-
@@ -45,23 +45,21 @@ import android.support.v4.media.session.PlaybackStateCompat;
 import android.view.KeyEvent;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -76,7 +74,10 @@ import java.util.concurrent.atomic.AtomicReference;
  * Interaction with the control is done by enqueueing commands by
  * calling {@link #runCommand(Command, String...)}. Commands are handled
  * sequentially in a separate worker thread, as to not block the
- * caller.
+ * caller. Commands that pile up while the worker is busy may be merged
+ * by the {@link CommandQueue} (e.g. several skips become a single jump).
+ * Callers that need to know when a command has been applied can use
+ * {@link #submitCommand(Command, String...)}.
  * <p>
  * Interesting behaviors include:
  *
@@ -95,10 +96,21 @@ import java.util.concurrent.atomic.AtomicReference;
  * to the background, and will only remain active in case there are
  * bound activities.
  * <p>
- * There are two state files kept by this class. One is the serialized
- * PlayerState, which contains the shuffled folders to be played. The
- * other is the serialized TrackInfo, which is the current track being
- * played.
+ * There are four state files kept by this class, managed by a
+ * {@link StateStore}. One is the PlayerState, which contains the
+ * shuffled folders to be played. The other is the TrackInfo, which is
+ * the current track being played. Then there's the {@link LibraryIndex},
+ * which caches the contents of the music directory so that it doesn't
+ * need to be walked every time the player changes albums. The last is
+ * the {@link MetadataCache}, with the tags of tracks played before, so
+ * they don't need to be extracted again; the tags of a whole album are
+ * read in a separate background thread when it's selected. To keep disk
+ * I/O out of the command thread, state is written in the background, and
+ * only flushed synchronously when playback is stopped.
+ * <p>
+ * The playback position is also recorded every few seconds in a
+ * {@link PlaybackJournal}, so that playback can resume close to where
+ * it was even if the process is killed before the track info is saved.
  */
 class PlayerControl extends Binder
     implements AudioManager.OnAudioFocusChangeListener,
@@ -107,10 +119,20 @@ class PlayerControl extends Binder
     private static final int ONGOING_NOTIFICATION = 10001;
     private static final String CMD_ARGS = "cmd_args";
     private static final String NOTIFICATION_CHAN_ID = "ashuffler-play-notification";
+    private static final long LIBRARY_UPDATE_DELAY_MS = 2000;
+    private static final int SCAN_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final long JOURNAL_INTERVAL_MS = 5000;
+    // Current and next tracks, plus one being released.
+    private static final int PLAYER_POOL_SIZE = 3;
+    private static final int JOURNAL_MAX_RECORDS = 120;
+    private static final long VALIDATION_BUDGET_MS = 50;
+    private static final long VALIDATION_INTERVAL_MS = 500;
+    private static final int METADATA_SAVE_CHANGES = 500;
 
     private final PlayerService service;
     private final MediaSessionCompat session;
     private final ScheduledExecutorService executor;
+    private final ExecutorService metadataLoader;
     private final BroadcastReceiver headsetReceiver;
     private final BroadcastReceiver shutdownReceiver;
     private final AudioManager audioManager;
@@ -119,15 +141,34 @@ class PlayerControl extends Binder
     private final NotificationManager notificationMgr;
     private final AudioFocusRequest focusRequest;
     private final List<PlayerListener> listeners;
+    private final StateStore store;
+    private final CommandQueue commands;
+    private final MediaPlayerPool playerPool;
+    private final PlaybackJournal journal;
+    private final Object metadataSaveLock = new Object();
 
     private boolean pausedByFocusLoss;
     private boolean registeredFocusListener;
     private PlayerState state;
+    private LibraryIndex library;
+    private MetadataCache metadata;
+    private volatile LibraryWatcher<?> watcher;
+    private String prefetchedFolder;
+    private List<String> prefetchedTracks;
+    private Future<?> albumLoad;
+    // Folders found to have gained or lost their tracks when listed by
+    // buildTrackList(), not merged into the state yet.
+    private final List<String> refreshedAdded = new ArrayList<>();
+    private final List<String> refreshedRemoved = new ArrayList<>();
 
     /**
      * Initializes the player control.
      * <p>
-     * Set up the storage monitor, and load all saved state.
+     * Only things needed to bind to the service and show the last known
+     * track are set up here (the media session, receivers and listeners).
+     * Loading the player state and reconciling it with the music library
+     * is done in the command thread, and commands enqueued in the meantime
+     * only run after that's done.
      */
     public PlayerControl(PlayerService service) {
         this.service = service;
@@ -136,6 +177,11 @@ class PlayerControl extends Binder
         this.audioManager = (AudioManager)
             service.getSystemService(Context.AUDIO_SERVICE);
         this.current = new AtomicReference<>();
+        this.store = new StateStore(service);
+        this.commands = new CommandQueue();
+        this.playerPool = new MediaPlayerPool(service, PLAYER_POOL_SIZE);
+        this.journal = new PlaybackJournal(
+            new File(service.getFilesDir(), PlaybackJournal.class.getName()));
 
         AudioAttributes attrs = new AudioAttributes.Builder()
             .setUsage(AudioAttributes.USAGE_MEDIA)
@@ -191,13 +237,74 @@ class PlayerControl extends Binder
         addPlayerListener(new Scrobbler(service));
         addPlayerListener(new NotificationUpdater());
 
-        state = loadObject(PlayerState.class);
-        if (state == null || !state.validate()) {
+        metadataLoader = Executors.newSingleThreadExecutor();
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.execute(this::loadState);
+    }
+
+    /**
+     * Loads the saved state and updates it to match the music library.
+     * This is the first task run by the command thread.
+     */
+    private void loadState() {
+        try {
+            doLoadState();
+        } catch (Exception e) {
+            Log.error(e, "Error loading player state.");
+            if (state == null) {
+                state = new PlayerState();
+            }
+            if (library == null) {
+                library = new LibraryIndex();
+            }
+            if (metadata == null) {
+                metadata = new MetadataCache();
+            }
+        }
+    }
+
+    private void doLoadState() {
+        library = store.load(LibraryIndex.class, LibraryIndex.CODEC);
+        state = store.load(PlayerState.class, PlayerState.CODEC);
+        if (state == null) {
+            // Journal records refer to ids in the old state's path table.
             state = new PlayerState();
+            journal.reset();
+        }
+        if (library == null) {
+            library = new LibraryIndex();
+        }
+        metadata = store.load(MetadataCache.class, MetadataCache.CODEC);
+        if (metadata == null) {
+            metadata = new MetadataCache();
         }
         checkFolders();
 
-        executor = Executors.newSingleThreadScheduledExecutor();
+        // Only the current folder is checked now; stale entries in the
+        // rest of the state are pruned in the background.
+        if (!state.validateCurrent()) {
+            String folder = state.currentFolder();
+            Log.info("Current folder %s changed, reloading.", folder);
+            mergeFolders(
+                new File(folder).isDirectory() ?
+                    Collections.<String>emptyList() : Collections.singletonList(folder),
+                Collections.<String>emptyList());
+        }
+        recoverPosition();
+        compactState();
+        if (state.currentFolder() != null) {
+            albumLoad = loadAlbumMetadata(state.currentFolder(),
+                new ArrayList<>(state.getTracks()));
+        }
+        executor.schedule(new StateValidator(), VALIDATION_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::journalPosition, JOURNAL_INTERVAL_MS,
+            JOURNAL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        // Watch the library for changes, so that the state can be updated
+        // without having to walk the storage.
+        watcher = LibraryWatcher.create(new LibraryMonitor());
+        watcher.sync(library.getDirectories());
     }
 
     /**
@@ -211,7 +318,7 @@ class PlayerControl extends Binder
             return p.getInfo();
         }
 
-        return loadObject(TrackInfo.class);
+        return store.load(TrackInfo.class, TrackInfo.CODEC);
     }
 
     public int getElapsedTime() {
@@ -222,7 +329,7 @@ class PlayerControl extends Binder
     /**
      * Shutdown the player.
      * <p>
-     * Stop the executor, stop playback, and save all state.
+     * Stop the executor, stop playback, and write all state to disk.
      */
     public void shutdown() {
         audioManager.abandonAudioFocusRequest(focusRequest);
@@ -237,9 +344,31 @@ class PlayerControl extends Binder
             Log.warn("Interrupted while waiting for termination.");
         }
 
+        commands.cancelAll();
+        metadataLoader.shutdownNow();
+        try {
+            if (!metadataLoader.awaitTermination(10, TimeUnit.SECONDS)) {
+                Log.warn("Failed to shut down metadata loader.");
+            }
+        } catch (InterruptedException ie) {
+            Log.warn("Interrupted while waiting for metadata loader.");
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+
         if (current.get() != null) {
             stop();
         }
+        if (metadata != null) {
+            saveMetadata();
+            Log.debug("Metadata cache: %d hits, %d misses.", metadata.getHits(),
+                metadata.getMisses());
+        }
+        store.close();
+        journal.close();
+        playerPool.close();
+        Log.debug("Merged %d queued commands.", commands.getMerged());
         service.unregisterReceiver(headsetReceiver);
         service.unregisterReceiver(shutdownReceiver);
     }
@@ -262,8 +391,13 @@ class PlayerControl extends Binder
 
     private void pause() {
         Player player = current.get();
-        if (player != null && player.isPlaying()) {
-            player.pause();
+        if (player != null) {
+            // The player may have been paused already by an earlier
+            // command.
+            if (player.isPlaying()) {
+                player.pause();
+            }
+            journalPosition(player);
         }
     }
 
@@ -286,6 +420,14 @@ class PlayerControl extends Binder
         UNSET_AUDIO_FOCUS,
         FINISH_CURRENT;
 
+        private static final Map<String, Command> BY_ACTION = new HashMap<>();
+
+        static {
+            for (Command c : values()) {
+                BY_ACTION.put(c.cmd != null ? c.cmd : c.name(), c);
+            }
+        }
+
         private final String cmd;
 
         Command(String cmd) {
@@ -297,13 +439,11 @@ class PlayerControl extends Binder
         }
 
         public static Command fromAction(String action) {
-            for (Command c : values()) {
-                String cmd = c.cmd != null ? c.cmd : c.name();
-                if (cmd.equals(action)) {
-                    return c;
-                }
+            Command c = action != null ? BY_ACTION.get(action) : null;
+            if (c == null) {
+                throw new IllegalArgumentException("action not found: " + action);
             }
-            throw new IllegalArgumentException("action not found: " + action);
+            return c;
         }
 
     }
@@ -316,10 +456,78 @@ class PlayerControl extends Binder
      * side-effect (like starting playback, which fires an event).
      */
     public void runCommand(Command cmd, String... args) {
-        Intent intent = new Intent();
-        intent.setAction(cmd.name());
-        intent.putExtra(CMD_ARGS, args);
-        executor.submit(new IntentTask(intent));
+        enqueue(cmd, args, null);
+    }
+
+    /**
+     * Enqueue a command that takes no arguments. Same as
+     * {@link #runCommand(Command, String...)}, without allocating an
+     * argument array.
+     */
+    public void runCommand(Command cmd) {
+        enqueue(cmd, null, null);
+    }
+
+    /**
+     * Enqueue a command for execution, returning a future that completes
+     * once the command has been applied.
+     * <p>
+     * The future's value is a copy of the info of the current track after
+     * the command ran (null if there isn't one). If the command was merged
+     * with others in the queue, the future completes when the merged
+     * command runs. Futures of commands that never run because the
+     * player is shut down are cancelled.
+     * <p>
+     * The future is completed in the command thread, so dependent stages
+     * that are not given an executor run there too. They should be quick,
+     * and must not touch the UI.
+     */
+    public CompletableFuture<TrackInfo> submitCommand(Command cmd, String... args) {
+        CompletableFuture<TrackInfo> future = new CompletableFuture<>();
+        enqueue(cmd, args, future);
+        return future;
+    }
+
+    /**
+     * Enqueue an intent for processing in the command thread. Intents
+     * that don't match a command are ignored.
+     * <p>
+     * This is meant for intents coming from outside the process (e.g.
+     * the notification's actions); in-process callers should use
+     * {@link #runCommand(Command)} instead.
+     */
+    public void runIntent(Intent intent) {
+        Command cmd;
+        try {
+            cmd = Command.fromAction(intent.getAction());
+        } catch (IllegalArgumentException iae) {
+            // Not recognized, ignore.
+            return;
+        }
+        enqueue(cmd, intent.getStringArrayExtra(CMD_ARGS), null);
+    }
+
+    private void enqueue(Command cmd, String[] args, CompletableFuture<TrackInfo> future) {
+        // Silence the player right away, even if the command thread is
+        // busy. If the player is still being prepared, this cancels the
+        // pending start. Only the MediaPlayer is touched here; the command
+        // itself still runs to update the session, the listeners and the
+        // rest of the state.
+        if (CommandQueue.isUrgent(cmd)) {
+            Player player = current.get();
+            if (player != null) {
+                player.silence();
+            }
+        }
+
+        if (commands.add(cmd, args, future)) {
+            try {
+                executor.submit(new CommandTask());
+            } catch (RejectedExecutionException ree) {
+                Log.warn("Player is shutting down, ignoring %s.", cmd);
+                commands.cancelAll();
+            }
+        }
     }
 
     /**
@@ -356,6 +564,7 @@ class PlayerControl extends Binder
         saveState();
         player.playPause();
         pausedByFocusLoss = false;
+        journalPosition(player);
     }
 
     private void seek(String[] args) {
@@ -399,9 +608,12 @@ class PlayerControl extends Binder
         if (info != null) {
             info.setElapsedTime(0);
         }
+        if (state.currentTrackId() >= 0) {
+            journal.append(state.currentTrackId(), 0);
+        }
 
-        saveObject(state, PlayerState.class);
-        saveObject(info, TrackInfo.class);
+        store.saveLater(state, PlayerState.class, PlayerState.CODEC);
+        store.saveLater(info, TrackInfo.class, TrackInfo.CODEC);
         pausedByFocusLoss = false;
         if (registeredFocusListener) {
             audioManager.abandonAudioFocusRequest(focusRequest);
@@ -429,19 +641,30 @@ class PlayerControl extends Binder
         int next = state.getCurrentTrack() + delta;
         while (next < 0) {
             loadFolder(-1);
+            if (!hasTracks()) {
+                Log.warn("No music found to play.");
+                return;
+            }
             next = state.getTracks().size() + next;
         }
         while (next >= state.getTracks().size()) {
             next -= state.getTracks().size();
             loadFolder(1);
-            if (nextPlayer != null ) {
-                nextPlayer.release();
-                nextPlayer = null;
+            if (!hasTracks()) {
+                Log.warn("No music found to play.");
+                return;
             }
         }
 
         state.setCurrentTrack(next);
 
+        // The prepared next track may be the first one of the next album;
+        // only use it if it's still the track to be played.
+        if (nextPlayer != null && !nextPlayer.getTrack().equals(state.currentTrack())) {
+            nextPlayer.release();
+            nextPlayer = null;
+        }
+
         if (nextPlayer == null) {
             startPlayback();
             return;
@@ -451,13 +674,48 @@ class PlayerControl extends Binder
         nextPlayer.setOnCompletionListener(this);
         saveState();
         nextPlayer.play(0);
+        setNextTrack(nextPlayer);
+    }
+
+    /**
+     * Handles the end of the current track. If the player already moved
+     * on to the next track, only the player state, session and listeners
+     * need to be updated.
+     */
+    private void finishCurrent() {
+        Player player = current.get();
+        if (player == null || !player.consumeHandOff()) {
+            changeTrack(1);
+            return;
+        }
+
+        int next = state.getCurrentTrack() + 1;
+        if (next >= state.getTracks().size()) {
+            loadFolder(1);
+            next = 0;
+            if (!hasTracks()) {
+                Log.warn("No music found to play.");
+                releasePlayer();
+                return;
+            }
+        }
+        state.setCurrentTrack(next);
+
+        // The folder list may have changed since the next album was
+        // prefetched, in which case the wrong track is playing.
+        if (!player.getTrack().equals(state.currentTrack())) {
+            Log.info("Prefetched track %s is not next, restarting.", player.getTrack());
+            releasePlayer();
+            startPlayback();
+            return;
+        }
+
+        player.publishTrack();
+        saveState();
         setNextTrack(player);
     }
 
     private void loadFolder(int delta) {
-        // Check storage for changes, just in case.
-        checkFolders();
-
         if (state.getFolders().isEmpty()) {
             return;
         }
@@ -469,7 +727,7 @@ class PlayerControl extends Binder
         }
         if (next >= state.getFolders().size()) {
             next = next % state.getFolders().size();
-            Collections.shuffle(state.getFolders());
+            state.shuffleFolders();
 
             String current = state.getFolders().get(state.getCurrentFolder());
             if (current.equals(state.getFolders().get(next))) {
@@ -477,43 +735,79 @@ class PlayerControl extends Binder
             }
         }
 
-        // Load the track list for the new album.
+        // Load the track list for the new album. If the folder is gone,
+        // the index is stale, so update it.
+        String folder = state.getFolders().get(next);
+        List<String> tracks = folder.equals(prefetchedFolder) ?
+            prefetchedTracks : buildTrackList(folder);
+        prefetchedFolder = null;
+        prefetchedTracks = null;
+
         state.setCurrentFolder(next);
         state.setCurrentTrack(0);
-        state.setTracks(buildTrackList(state.getFolders().get(next)));
+        state.setTracks(tracks);
+
+        // If the folder turned out to be empty, this moves on to another one.
+        pruneFolders();
+        if (!hasTracks()) {
+            checkFolders();
+        }
+
+        // A pending load for the album being left is not needed anymore.
+        if (albumLoad != null) {
+            albumLoad.cancel(false);
+        }
+        albumLoad = null;
+        if (hasTracks()) {
+            albumLoad = loadAlbumMetadata(state.currentFolder(),
+                new ArrayList<>(state.getTracks()));
+        }
+        compactState();
     }
 
     private void startPlayback() {
+        String track = state.currentTrack();
+        if (track != null && !new File(track).isFile()) {
+            checkFolders();
+            track = state.currentTrack();
+        }
+        if (track == null) {
+            Log.warn("No music found to play.");
+            return;
+        }
+
         if (!registeredFocusListener) {
             audioManager.requestAudioFocus(focusRequest);
             registeredFocusListener = true;
         }
-        String track = state.getTracks().get(state.getCurrentTrack());
 
-        if (!new File(track).isFile()) {
-            checkFolders();
-            track = state.getTracks().get(state.getCurrentTrack());
-        }
+        // Nothing is playing here, so this is the saved track info.
+        TrackInfo saved = getCurrentInfo();
 
         Player player;
         try {
-            player = new Player(service, session, track, null, listeners);
+            player = new Player(service, playerPool, metadata, session, executor, track,
+                null, listeners);
         } catch (IOException ioe) {
             Log.warn("Error loading player: %s", ioe.getMessage());
             return;
         }
 
-        current.set(player);
-        saveState();
-
-        TrackInfo info = getCurrentInfo();
+        // Resume the saved track where it was. The duration comes from the
+        // track's metadata, since the player is not prepared yet.
+        TrackInfo info = player.getInfo();
         int startPos = 0;
-        if (info != null &&
-            info.getElapsedTime() > 0 &&
-            info.getElapsedTime() < player.getInfo().getDuration()) {
-            startPos = info.getElapsedTime();
+        if (saved != null &&
+            track.equals(saved.getPath()) &&
+            saved.getElapsedTime() > 0 &&
+            (info.getDuration() <= 0 || saved.getElapsedTime() < info.getDuration())) {
+            startPos = saved.getElapsedTime();
+            info.setElapsedTime(startPos);
         }
 
+        current.set(player);
+        saveState();
+
         pausedByFocusLoss = false;
         player.setOnCompletionListener(this);
         player.play(startPos);
@@ -534,19 +828,24 @@ class PlayerControl extends Binder
             if (player != null && player.isPlaying()) {
                 player.pause();
                 pausedByFocusLoss = true;
+                journalPosition(player);
             }
         }
     }
 
     private void setNextTrack(Player player) {
         int nextIdx = state.getCurrentTrack() + 1;
-        if (nextIdx >= state.getTracks().size()) {
-            Log.info("last track in album");
-            return;
+        String nextPath;
+        if (nextIdx < state.getTracks().size()) {
+            nextPath = state.getTracks().get(nextIdx);
+        } else {
+            nextPath = prefetchNextFolder();
+            if (nextPath == null) {
+                return;
+            }
         }
 
         try {
-            String nextPath = state.getTracks().get(nextIdx);
             player.setNext(nextPath);
         } catch (IOException ioe) {
             Log.warn("Failed to initialize next track: %s",
@@ -554,10 +853,186 @@ class PlayerControl extends Binder
         }
     }
 
+    /**
+     * Resolves the track list of the next folder, so that its first track
+     * can be prepared while the current album is still playing.
+     * <p>
+     * Nothing is prefetched for the last folder, since the folder list is
+     * reshuffled when playback wraps around.
+     *
+     * @return The first track of the next folder, or null.
+     */
+    private String prefetchNextFolder() {
+        int nextFolder = state.getCurrentFolder() + 1;
+        if (nextFolder <= 0 || nextFolder >= state.getFolders().size()) {
+            Log.info("last track in last album");
+            return null;
+        }
+
+        String folder = state.getFolders().get(nextFolder);
+        List<String> tracks = buildTrackList(folder);
+        if (tracks.isEmpty()) {
+            pruneFolders();
+            return null;
+        }
+
+        prefetchedFolder = folder;
+        prefetchedTracks = tracks;
+        loadAlbumMetadata(folder, tracks);
+        return tracks.get(0);
+    }
+
+    /**
+     * Drops the prefetched track list if the library changed under it:
+     * the folder is not the next one anymore, or its tracks changed. The
+     * next player may still have the old first track prepared; that's
+     * caught when the album changes, since it won't match the new list.
+     */
+    private void checkPrefetch() {
+        if (prefetchedFolder == null) {
+            return;
+        }
+
+        List<String> folders = state.getFolders();
+        int nextFolder = state.getCurrentFolder() + 1;
+        if (nextFolder <= 0 || nextFolder >= folders.size() ||
+            !folders.get(nextFolder).equals(prefetchedFolder) ||
+            !library.getTracks(prefetchedFolder).equals(prefetchedTracks)) {
+            Log.debug("Discarding prefetched folder %s.", prefetchedFolder);
+            prefetchedFolder = null;
+            prefetchedTracks = null;
+        }
+    }
+
+    /**
+     * Reads the tags of an album's tracks in the metadata loader thread,
+     * so that they're cached by the time players are created for them.
+     * <p>
+     * The list must not be modified afterwards.
+     *
+     * @return The pending load, or null if the loader is shut down.
+     */
+    private Future<?> loadAlbumMetadata(String folder, List<String> tracks) {
+        MetadataCache cache = metadata;
+        try {
+            return metadataLoader.submit(() -> {
+                long start = System.nanoTime();
+                int count = cache.loadAll(tracks);
+                if (count > 0) {
+                    Log.debug("Read tags of %d tracks in %s (%d ms).", count, folder,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                // Saving means encoding the whole cache, so only do it here
+                // once enough new entries have built up. This also saves the
+                // ones loaded by the command thread. Both the cache and the
+                // store are thread-safe.
+                if (cache.getChanges() >= METADATA_SAVE_CHANGES) {
+                    saveMetadata();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Shutting down.
+            return null;
+        }
+    }
+
     private void saveState() {
         TrackInfo info = getCurrentInfo();
-        saveObject(info, TrackInfo.class);
-        saveObject(state, PlayerState.class);
+        store.saveLater(info, TrackInfo.class, TrackInfo.CODEC);
+        store.saveLater(state, PlayerState.class, PlayerState.CODEC);
+    }
+
+    /**
+     * Saves the metadata cache if it has new entries. This is not done
+     * on every track or album change since the cache can be large; it's
+     * saved on the STOP command and at shutdown, and when the metadata
+     * loader has added a good number of entries.
+     * <p>
+     * Called from both the command thread and the metadata loader; saves
+     * are serialized so that an older snapshot doesn't replace a newer one.
+     */
+    private void saveMetadata() {
+        synchronized (metadataSaveLock) {
+            if (metadata.clearDirty()) {
+                store.saveLater(metadata, MetadataCache.class, MetadataCache.CODEC);
+            }
+        }
+    }
+
+    /**
+     * Records the playback position in the journal. Called periodically
+     * from the command thread while playing.
+     */
+    private void journalPosition() {
+        Player player = current.get();
+        if (player != null && player.isPlaying()) {
+            journalPosition(player);
+        }
+    }
+
+    private void journalPosition(Player player) {
+        int trackId = state.currentTrackId();
+        if (trackId < 0) {
+            return;
+        }
+        TrackInfo info = player.getInfo();
+
+        journal.append(trackId, info.getElapsedTime());
+
+        // Compact the journal by writing the position to the track info
+        // file, which is where playback resumes from (the player state
+        // doesn't keep positions). This needs to be a synchronous write,
+        // since the journal records are discarded right after.
+        if (journal.size() >= JOURNAL_MAX_RECORDS) {
+            store.save(info, TrackInfo.class, TrackInfo.CODEC);
+            journal.reset();
+        }
+    }
+
+    /**
+     * Compacts the state's path table if it's mostly unused paths. Track
+     * ids change when that happens, so the state is saved right away and
+     * the journal, whose records have the old ids, is started over.
+     * <p>
+     * Must not be called while loading the state before the position is
+     * recovered from the journal.
+     */
+    private void compactState() {
+        int before = state.getPathCount();
+        if (!state.compact()) {
+            return;
+        }
+
+        Log.debug("Compacted path table from %d to %d entries.", before,
+            state.getPathCount());
+        store.save(state, PlayerState.class, PlayerState.CODEC);
+        journal.reset();
+        Player player = current.get();
+        if (player != null) {
+            journalPosition(player);
+        }
+    }
+
+    /**
+     * Restores the playback position from the journal, which may be more
+     * recent than the saved track info if the process was killed.
+     */
+    private void recoverPosition() {
+        PlaybackJournal.Record last = journal.last();
+        if (last == null || last.getTrackId() != state.currentTrackId()) {
+            return;
+        }
+
+        TrackInfo info = store.load(TrackInfo.class, TrackInfo.CODEC);
+        if (info == null ||
+            !info.getPath().equals(state.currentTrack()) ||
+            info.getElapsedTime() == last.getPosition()) {
+            return;
+        }
+
+        Log.info("Restoring position %d from journal.", last.getPosition());
+        info.setElapsedTime(last.getPosition());
+        store.saveLater(info, TrackInfo.class, TrackInfo.CODEC);
     }
 
     @Override
@@ -577,29 +1052,27 @@ class PlayerControl extends Binder
         }
     }
 
-    public void processIntent(Intent intent) {
-        Command cmd;
-        try {
-            cmd = Command.fromAction(intent.getAction());
-        } catch (IllegalArgumentException iae) {
-            // Not recognized, ignore.
-            return;
-        }
-
-        String[] args = intent.getStringArrayExtra(CMD_ARGS);
+    /**
+     * Runs a command. For folder and track changes, "delta" is the number
+     * of positions to move, which may be the sum of several merged
+     * commands.
+     */
+    private void processCommand(Command cmd, String[] args, int delta) {
         switch (cmd) {
             case NEXT_FOLDER:
-                changeFolder(1);
-                break;
-            case NEXT_TRACK:
-            case FINISH_CURRENT:
-                changeTrack(1);
-                break;
             case PREV_FOLDER:
-                changeFolder(-1);
+                if (delta != 0) {
+                    changeFolder(delta);
+                }
                 break;
+            case NEXT_TRACK:
             case PREV_TRACK:
-                changeTrack(-1);
+                if (delta != 0) {
+                    changeTrack(delta);
+                }
+                break;
+            case FINISH_CURRENT:
+                finishCurrent();
                 break;
             case PLAY_PAUSE:
                 playPause();
@@ -620,6 +1093,10 @@ class PlayerControl extends Binder
                 break;
             case STOP:
                 stop();
+                // Not saved by stop(), which also runs on every album change.
+                saveMetadata();
+                store.flush();
+                journal.reset();
                 stopService();
                 break;
             case UNSET_AUDIO_FOCUS:
@@ -630,42 +1107,77 @@ class PlayerControl extends Binder
         }
     }
 
+    /**
+     * Checks the whole music directory for changes.
+     * <p>
+     * Since this may need to walk a large tree (e.g. on first run), the
+     * walk is done with a parallel scanner.
+     */
     private void checkFolders() {
         File root = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
-        Set<String> folders = new HashSet<>();
-        findChildFolders(root, folders);
+        updateLibrary(Collections.singletonList(root),
+            LibraryScanner.parallel(SCAN_PARALLELISM));
+    }
+
+    /**
+     * Checks the given directories for changes, and merges the added
+     * and removed folders into the player state.
+     */
+    private void updateLibrary(Collection<File> dirs, LibraryScanner scanner) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        boolean changed = false;
+        for (File dir : dirs) {
+            LibraryIndex.Diff diff = library.update(dir, scanner);
+            added.addAll(diff.getAdded());
+            removed.addAll(diff.getRemoved());
+            changed |= diff.isChanged();
+        }
 
-        boolean foundCurrent = false;
-        int currentFolderIdx = -1;
+        if (!removed.isEmpty()) {
+            metadata.removeFolders(removed);
+        }
 
-        // Look at the current known folders, and keep the existing
-        // ones in the current order. We'll shuffle just the added
-        // ones at the end of the current list.
-        for (Iterator<String> it = state.getFolders().iterator(); it.hasNext(); ) {
-            String folder = it.next();
-            boolean onDisk = folders.remove(folder);
-            if (!onDisk) {
-                it.remove();
+        if (changed) {
+            store.saveLater(library, LibraryIndex.class, LibraryIndex.CODEC);
+            if (watcher != null) {
+                watcher.sync(library.getDirectories());
             }
+        }
 
-            if (!foundCurrent) {
-                currentFolderIdx++;
-                foundCurrent = Objects.equals(folder, state.currentFolder());
-            }
+        if (state.getFolders().isEmpty()) {
+            mergeFolders(Collections.<String>emptyList(), library.getFolders());
+        } else if (changed) {
+            mergeFolders(removed, added);
         }
+    }
 
-        List<String> newFolders = new ArrayList<>(folders);
-        Collections.shuffle(newFolders);
-        state.getFolders().addAll(newFolders);
+    private void mergeFolders(Collection<String> removed, Collection<String> added) {
+        String currentFolder = state.currentFolder();
+        String currentTrack = state.currentTrack();
 
-        if (state.getFolders().isEmpty()) {
+        // Keep the existing folders in the current order. We'll shuffle
+        // just the added ones at the end of the current list.
+        if (!removed.isEmpty()) {
+            state.removeFolders(removed);
+        }
+
+        if (!added.isEmpty()) {
+            List<String> newFolders = new ArrayList<>(added);
+            Collections.shuffle(newFolders);
+            state.addFolders(newFolders);
+        }
+
+        List<String> folders = state.getFolders();
+        if (folders.isEmpty()) {
             Log.warn("No playable folders found in root dir.");
+            checkPrefetch();
+            pruneFolders();
             return;
         }
 
-        String currentTrack = state.currentTrack();
-
-        if (!foundCurrent) {
+        int currentFolderIdx = currentFolder != null ? folders.indexOf(currentFolder) : -1;
+        if (currentFolderIdx < 0) {
             currentFolderIdx = 0;
             currentTrack = null;
         }
@@ -681,74 +1193,53 @@ class PlayerControl extends Binder
             }
         }
         state.setCurrentTrack(trackIdx);
+        checkPrefetch();
+        pruneFolders();
     }
 
-    private void findChildFolders(File folder, Collection<String> folders) {
-        boolean added = false;
-        File[] children = folder.listFiles();
-        if (children == null) {
-            return;
-        }
-        for (File f : children) {
-            if (f.isDirectory()) {
-                findChildFolders(f, folders);
-            } else if (!added) {
-                folders.add(folder.getAbsolutePath());
-                added = true;
+    /**
+     * Merges the folders that buildTrackList() found to have gained or
+     * lost their tracks into the state. Otherwise, if the current folder
+     * has no tracks (e.g. the index already knew it was empty), it's
+     * removed, so that another folder becomes current.
+     */
+    private void pruneFolders() {
+        if (!refreshedAdded.isEmpty() || !refreshedRemoved.isEmpty()) {
+            List<String> added = new ArrayList<>(refreshedAdded);
+            List<String> removed = new ArrayList<>(refreshedRemoved);
+            refreshedAdded.clear();
+            refreshedRemoved.clear();
+
+            if (!removed.isEmpty()) {
+                metadata.removeFolders(removed);
             }
-        }
-    }
-
-    private List<String> buildTrackList(String folder) {
-        List<String> tracks = new LinkedList<>();
-        File[] children = new File(folder).listFiles();
-        if (children == null) {
-            return tracks;
-        }
-        for (File f : children) {
-            if (f.isFile()) {
-                tracks.add(f.getAbsolutePath());
+            if (watcher != null) {
+                watcher.sync(library.getDirectories());
             }
+            mergeFolders(removed, added);
+            return;
         }
-        Collections.sort(tracks);
-        return tracks;
-    }
-
-    private <T extends Serializable> T loadObject(Class<T> klass) {
-        String fileName = klass.getName();
 
-        try (
-            InputStream in = service.openFileInput(fileName);
-        ){
-            return (T) new ObjectInputStream(in).readObject();
-        } catch (FileNotFoundException fnf) {
-            return null;
-        } catch (Exception e) {
-            Log.info("Cannot load object from file %s: %s", fileName, e.getMessage());
-            return null;
+        String folder = state.currentFolder();
+        if (folder != null && state.getTracks().isEmpty()) {
+            Log.info("Folder %s has no tracks, removing.", folder);
+            mergeFolders(Collections.singletonList(folder), Collections.<String>emptyList());
         }
     }
 
-    private void saveObject(Serializable object, Class<?> klass) {
-        if (object != null && !object.getClass().equals(klass)) {
-            throw new IllegalArgumentException();
-        }
-
-        String fileName = klass.getName();
-        if (object == null) {
-            service.deleteFile(fileName);
-            return;
-        }
-
-        try (
-            OutputStream out = service.openFileOutput(fileName, Context.MODE_PRIVATE);
-        ) {
-            ObjectOutputStream oout = new ObjectOutputStream(out);
-            oout.writeObject(object);
-            oout.flush();
-        } catch (Exception e) {
-            Log.info("Cannot save object %s: %s", fileName, e.getMessage());
+    /**
+     * Returns the tracks of a folder, listing it again if it changed.
+     * Changes to whether it has tracks are merged into the state by
+     * {@link #pruneFolders()}.
+     */
+    private List<String> buildTrackList(String folder) {
+        LibraryIndex.Diff diff = library.refresh(folder);
+        if (diff.isChanged()) {
+            store.saveLater(library, LibraryIndex.class, LibraryIndex.CODEC);
         }
+        refreshedAdded.addAll(diff.getAdded());
+        refreshedRemoved.addAll(diff.getRemoved());
+        return library.getTracks(folder);
     }
 
     private boolean hasTracks() {
@@ -832,22 +1323,112 @@ class PlayerControl extends Binder
     }
 
     /**
-     * Submittable task for processing intents.
+     * Monitor for changes in the music library.
+     * <p>
+     * Collects the directories reported by the library watcher, and
+     * updates them in the command thread after a short delay, so that
+     * bursts of events (e.g. while copying a new album) result in a
+     * single update.
      */
-    private class IntentTask implements Runnable {
+    private class LibraryMonitor implements LibraryWatcher.Listener, Runnable {
 
-        private final Intent intent;
+        private final Set<File> changed = new HashSet<>();
 
-        IntentTask(Intent intent) {
-            this.intent = intent;
+        @Override
+        public void directoryChanged(String path) {
+            synchronized (changed) {
+                if (changed.isEmpty()) {
+                    try {
+                        executor.schedule(this, LIBRARY_UPDATE_DELAY_MS,
+                            TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException ree) {
+                        // Shutting down.
+                        return;
+                    }
+                }
+                changed.add(new File(path));
+            }
         }
 
         @Override
         public void run() {
+            List<File> dirs;
+            synchronized (changed) {
+                dirs = new ArrayList<>(changed);
+                changed.clear();
+            }
+
             try {
-                processIntent(intent);
+                updateLibrary(dirs, LibraryScanner.serial());
+                compactState();
             } catch (Exception e) {
-              Log.error(e, "Error processing intent.");
+                Log.error(e, "Error updating library.");
+            }
+        }
+
+    }
+
+    /**
+     * Checks the folders in the player state in the background, a few at
+     * a time, removing the ones that don't exist anymore.
+     * <p>
+     * Each run is limited by a time budget so that commands are not held
+     * up for long. If the folders are reshuffled while this is running,
+     * some folders may not be checked; those are still caught when they
+     * are played, since that finds an empty album and updates the library.
+     */
+    private class StateValidator implements Runnable {
+
+        private int next;
+
+        @Override
+        public void run() {
+            try {
+                List<String> stale = new ArrayList<>();
+                int end = state.findStaleFolders(next, VALIDATION_BUDGET_MS, stale);
+                if (!stale.isEmpty()) {
+                    Log.info("Removing %d stale folders.", stale.size());
+                    mergeFolders(stale, Collections.<String>emptyList());
+                    store.saveLater(state, PlayerState.class, PlayerState.CODEC);
+                    compactState();
+                }
+
+                // All stale folders were before "end", so account for them
+                // having been removed.
+                next = end - stale.size();
+                if (next < state.getFolders().size()) {
+                    executor.schedule(this, VALIDATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException ree) {
+                // Shutting down.
+            } catch (Exception e) {
+                Log.error(e, "Error validating player state.");
+            }
+        }
+
+    }
+
+    /**
+     * Submittable task that runs all queued commands.
+     */
+    private class CommandTask implements Runnable {
+
+        @Override
+        public void run() {
+            CommandQueue.Entry e;
+            while ((e = commands.poll()) != null) {
+                try {
+                    processCommand(e.cmd, e.args, e.delta);
+                    if (e.hasFutures()) {
+                        TrackInfo info = getCurrentInfo();
+                        e.complete(info != null ? info.copy() : null);
+                    }
+                } catch (Exception ex) {
+                  Log.error(ex, "Error processing command %s.", e.cmd);
+                  e.fail(ex);
+                } finally {
+                    commands.recycle(e);
+                }
             }
         }
 
@@ -941,7 +1522,7 @@ class PlayerControl extends Binder
                 .setShowActionsInCompactView(0, 1);
             builder.setStyle(style);
 
-            Bitmap artwork = track.getArtwork();
+            Bitmap artwork = track.getArtwork(ArtworkCache.Size.NOTIFICATION);
             if (artwork != null) {
                 builder.setLargeIcon(artwork);
             }
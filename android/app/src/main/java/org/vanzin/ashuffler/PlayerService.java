@@ -38,8 +38,10 @@ public class PlayerService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         init();
-        MediaButtonReceiver.handleIntent(control.getSession(), intent);
-        control.processIntent(intent);
+        if (intent != null) {
+            MediaButtonReceiver.handleIntent(control.getSession(), intent);
+            control.runIntent(intent);
+        }
         return START_STICKY;
     }
 
@@ -15,10 +15,21 @@
  */
 package org.vanzin.ashuffler;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The player state.
@@ -26,19 +37,67 @@ import java.util.List;
  * This class holds information about the known folders in the
  * phone's Music directory and the current folder / track being
  * played.
+ * <p>
+ * Folders and tracks are kept as arrays of ids into a {@link PathTable},
+ * to keep both the memory footprint and the serialized state small for
+ * large libraries. The lists returned by {@link #getFolders()} and
+ * {@link #getTracks()} are read-only views; changes are made through
+ * the methods in this class.
+ * <p>
+ * The state is saved using {@link #CODEC}; Java serialization is only
+ * kept to be able to read state saved by older versions.
  */
 class PlayerState implements Serializable {
 
     public static final long serialVersionUID = 3999248501740180351L;
 
+    private static final int[] NO_IDS = new int[0];
+
+    static final StateStore.Codec<PlayerState> CODEC = new StateStore.Codec<PlayerState>() {
+
+        @Override
+        public void write(PlayerState state, DataOutput out) throws IOException {
+            out.writeInt(state.currentFolder);
+            out.writeInt(state.currentTrack);
+            state.paths.writeTo(out);
+            StateStore.writeInts(out, state.folders, state.folderCount);
+            StateStore.writeInts(out, state.tracks, state.tracks.length);
+        }
+
+        @Override
+        public PlayerState read(DataInput in, int version) throws IOException {
+            PlayerState state = new PlayerState();
+            state.currentFolder = in.readInt();
+            state.currentTrack = in.readInt();
+            state.paths = PathTable.readFrom(in);
+            state.folders = state.checkIds(StateStore.readInts(in));
+            state.folderCount = state.folders.length;
+            state.tracks = state.checkIds(StateStore.readInts(in));
+            return state;
+        }
+
+    };
+
+    // Serialized form written by older versions, which stored full paths.
+    // It's only read, to convert old state files.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("currentFolder", int.class),
+        new ObjectStreamField("currentTrack", int.class),
+        new ObjectStreamField("folders", List.class),
+        new ObjectStreamField("tracks", List.class),
+    };
+
+    private PathTable paths = new PathTable();
+
     private int currentFolder;
-    private final List<String> folders = new LinkedList<>();
+    private int[] folders = NO_IDS;
+    private int folderCount;
 
     private int currentTrack;
-    private List<String> tracks = new LinkedList<>();
+    private int[] tracks = NO_IDS;
 
     public int getCurrentFolder() {
-        return currentFolder < folders.size() ? currentFolder : -1;
+        return currentFolder < folderCount ? currentFolder : -1;
     }
 
     public void setCurrentFolder(int currentFolder) {
@@ -46,11 +105,78 @@ class PlayerState implements Serializable {
     }
 
     public List<String> getFolders() {
-        return folders;
+        return new PathList() {
+            @Override
+            int[] ids() {
+                return folders;
+            }
+
+            @Override
+            public int size() {
+                return folderCount;
+            }
+        };
+    }
+
+    /**
+     * Appends the given folders to the folder list, skipping the ones
+     * that are already in it.
+     */
+    public void addFolders(Collection<String> added) {
+        BitSet known = new BitSet(paths.size());
+        for (int i = 0; i < folderCount; i++) {
+            known.set(folders[i]);
+        }
+
+        if (folders.length < folderCount + added.size()) {
+            folders = Arrays.copyOf(folders, folderCount + added.size());
+        }
+        for (String folder : added) {
+            int id = paths.intern(folder);
+            if (!known.get(id)) {
+                known.set(id);
+                folders[folderCount++] = id;
+            }
+        }
+    }
+
+    /**
+     * Removes the given folders from the folder list, keeping the order
+     * of the remaining ones.
+     */
+    public void removeFolders(Collection<String> removed) {
+        BitSet gone = new BitSet(paths.size());
+        for (String folder : removed) {
+            int id = paths.find(folder);
+            if (id >= 0) {
+                gone.set(id);
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < folderCount; i++) {
+            if (!gone.get(folders[i])) {
+                folders[count++] = folders[i];
+            }
+        }
+        folderCount = count;
+    }
+
+    /**
+     * Shuffles the folder list in place.
+     */
+    public void shuffleFolders() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = folderCount - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = folders[i];
+            folders[i] = folders[j];
+            folders[j] = tmp;
+        }
     }
 
     public int getCurrentTrack() {
-        return currentTrack < tracks.size() ? currentTrack : -1;
+        return currentTrack < tracks.length ? currentTrack : -1;
     }
 
     public void setCurrentTrack(int currentTrack) {
@@ -58,35 +184,199 @@ class PlayerState implements Serializable {
     }
 
     public List<String> getTracks() {
-        return tracks;
+        return new PathList() {
+            @Override
+            int[] ids() {
+                return tracks;
+            }
+
+            @Override
+            public int size() {
+                return tracks.length;
+            }
+        };
     }
 
     public void setTracks(List<String> tracks) {
-        this.tracks = tracks;
+        int[] ids = new int[tracks.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = paths.intern(tracks.get(i));
+        }
+        this.tracks = ids;
+    }
+
+    /**
+     * Returns the number of entries in the path table.
+     */
+    public int getPathCount() {
+        return paths.size();
     }
 
     public String currentFolder() {
-      int idx = getCurrentFolder();
-      return idx >= 0 ? folders.get(idx) : null;
+        int idx = getCurrentFolder();
+        return idx >= 0 ? paths.get(folders[idx]) : null;
     }
 
     public String currentTrack() {
-      int idx = getCurrentTrack();
-      return idx >= 0 ? tracks.get(idx) : null;
+        int idx = getCurrentTrack();
+        return idx >= 0 ? paths.get(tracks[idx]) : null;
+    }
+
+    /**
+     * Returns the path table id of the current track, or -1 if there is
+     * no current track. Ids are stable until the state is compacted.
+     */
+    public int currentTrackId() {
+        int idx = getCurrentTrack();
+        return idx >= 0 ? tracks[idx] : -1;
     }
 
-    public boolean validate() {
-      for (String f : folders) {
-        if (!new File(f).isDirectory()) {
-          return false;
+    /**
+     * Drops paths that are not used by the folder list or the current
+     * track list from the path table, once they make up a good part of
+     * it. Old track lists and removed folders are not needed anymore,
+     * and would otherwise make the table grow with every album played.
+     * <p>
+     * Path ids change when the table is compacted.
+     *
+     * @return Whether the table was compacted.
+     */
+    public boolean compact() {
+        BitSet used = new BitSet(paths.size());
+        for (int i = 0; i < folderCount; i++) {
+            used.set(folders[i]);
         }
-      }
-      for (String f : tracks) {
-        if (!new File(f).isFile()) {
-          return false;
+        for (int id : tracks) {
+            used.set(id);
         }
-      }
-      return true;
+
+        int[] remap = paths.compact(used);
+        if (remap == null) {
+            return false;
+        }
+        for (int i = 0; i < folderCount; i++) {
+            folders[i] = remap[folders[i]];
+        }
+        int[] remapped = new int[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            remapped[i] = remap[tracks[i]];
+        }
+        tracks = remapped;
+        return true;
+    }
+
+    /**
+     * Checks whether the current folder and its tracks still exist. The
+     * rest of the folders are checked with {@link #findStaleFolders}.
+     */
+    public boolean validateCurrent() {
+        String folder = currentFolder();
+        if (folder == null) {
+            return true;
+        }
+        if (!new File(folder).isDirectory()) {
+            return false;
+        }
+        for (String f : getTracks()) {
+            if (!new File(f).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether folders still exist, starting at the given index,
+     * until all folders have been checked or the time budget runs out.
+     * Missing folders are added to the given collection.
+     *
+     * @return The index of the first folder that was not checked.
+     */
+    public int findStaleFolders(int start, long budgetMs, Collection<String> stale) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        int idx = Math.max(start, 0);
+        while (idx < folderCount && System.nanoTime() < deadline) {
+            String folder = paths.get(folders[idx++]);
+            if (!new File(folder).isDirectory()) {
+                stale.add(folder);
+            }
+        }
+        return idx;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        currentFolder = fields.get("currentFolder", 0);
+        currentTrack = fields.get("currentTrack", 0);
+
+        paths = new PathTable();
+        folders = NO_IDS;
+        folderCount = 0;
+        List<String> oldFolders = (List<String>) fields.get("folders", null);
+        if (oldFolders != null) {
+            addFolders(oldFolders);
+        }
+        tracks = NO_IDS;
+        List<String> oldTracks = (List<String>) fields.get("tracks", null);
+        if (oldTracks != null) {
+            setTracks(oldTracks);
+        }
+    }
+
+    private int[] checkIds(int[] ids) throws IOException {
+        if (ids == null) {
+            return NO_IDS;
+        }
+        for (int id : ids) {
+            if (id < 0 || id >= paths.size()) {
+                throw new IOException("Invalid path id: " + id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Read-only list view that resolves path ids.
+     */
+    private abstract class PathList extends AbstractList<String>
+        implements RandomAccess {
+
+        abstract int[] ids();
+
+        @Override
+        public String get(int idx) {
+            if (idx < 0 || idx >= size()) {
+                throw new IndexOutOfBoundsException(String.valueOf(idx));
+            }
+            return paths.get(ids()[idx]);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof String)) {
+                return -1;
+            }
+            int id = paths.find((String) o);
+            if (id < 0) {
+                return -1;
+            }
+            int[] ids = ids();
+            for (int i = 0; i < size(); i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
     }
-}
 
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import android.content.Context;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the player's state files.
+ * <p>
+ * Each object is stored in a private file named after its class, in a
+ * compact binary format: a header with a magic number, the format
+ * version, the length of the data and its checksum, followed by the
+ * data itself as written by the object's {@link Codec}.
+ * <p>
+ * Files are replaced atomically (by writing to a temp file, syncing it
+ * and renaming it over the old one), so that if the process is killed
+ * while saving, the previous version of the file is still there. Files
+ * that fail the checksum are ignored.
+ * <p>
+ * Objects can also be saved asynchronously with
+ * {@link #saveLater(Object, Class, Codec)}. The object is encoded
+ * right away, but the data is only written to disk by a background
+ * thread after a short delay, so that frequent saves of the same
+ * object result in a single write of its latest version.
+ * <p>
+ * Files written by older versions of the player, which used Java
+ * serialization, are still readable. They're converted to the binary
+ * format as soon as they're loaded.
+ */
+class StateStore {
+
+    /**
+     * Converts objects of a given type to and from their binary form.
+     */
+    interface Codec<T> {
+
+        void write(T obj, DataOutput out) throws IOException;
+
+        /**
+         * Reads an object.
+         *
+         * @param version The format version of the file being read.
+         */
+        T read(DataInput in, int version) throws IOException;
+
+    }
+
+    /**
+     * Version of the binary format.
+     */
+    static final int VERSION = 2;
+
+    private static final int MAGIC = 0x61536866;
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+    private static final long FLUSH_DELAY_MS = 3000;
+
+    private final Context context;
+    private final ScheduledExecutorService writer;
+    private final Object writeLock = new Object();
+
+    // Data waiting to be written, by file name. A null value means the
+    // file should be deleted. Entries are only removed once written, so
+    // that load() never sees the old file while a write is in progress.
+    private final Map<String, byte[]> pending = new HashMap<>();
+    private boolean flushScheduled;
+
+    StateStore(Context context) {
+        this.context = context;
+        this.writer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Loads the saved object of the given type.
+     *
+     * @return The object, or null if it doesn't exist or can't be read.
+     */
+    public <T> T load(Class<T> klass, Codec<T> codec) {
+        String fileName = klass.getName();
+        T obj;
+
+        // If there is a pending write, that's the latest version.
+        synchronized (pending) {
+            if (pending.containsKey(fileName)) {
+                byte[] data = pending.get(fileName);
+                try {
+                    return data != null ? decode(data, klass, codec) : null;
+                } catch (Exception e) {
+                    Log.info("Cannot decode object %s: %s", fileName, e.getMessage());
+                    return null;
+                }
+            }
+        }
+
+        byte[] data;
+        try {
+            data = getFile(fileName).readFully();
+            obj = decode(data, klass, codec);
+        } catch (FileNotFoundException fnf) {
+            return null;
+        } catch (Exception e) {
+            Log.info("Cannot load object from file %s: %s", fileName, e.getMessage());
+            return null;
+        }
+
+        if (isSerialized(data)) {
+            Log.info("Converting %s to binary format.", fileName);
+            save(obj, klass, codec);
+        }
+        return obj;
+    }
+
+    /**
+     * Saves an object, replacing the existing one of the same type. If
+     * the object is null, the existing file is deleted.
+     */
+    public <T> void save(T obj, Class<T> klass, Codec<T> codec) {
+        String fileName = klass.getName();
+        byte[] data;
+        try {
+            data = obj != null ? encode(obj, codec) : null;
+        } catch (IOException ioe) {
+            Log.info("Cannot encode object %s: %s", fileName, ioe.getMessage());
+            return;
+        }
+
+        synchronized (writeLock) {
+            synchronized (pending) {
+                pending.put(fileName, data);
+            }
+            write(fileName, data);
+        }
+    }
+
+    /**
+     * Saves an object in the background. The object is encoded before
+     * this method returns, so it's safe to modify it afterwards.
+     */
+    public <T> void saveLater(T obj, Class<T> klass, Codec<T> codec) {
+        String fileName = klass.getName();
+        byte[] data;
+        try {
+            data = obj != null ? encode(obj, codec) : null;
+        } catch (IOException ioe) {
+            Log.info("Cannot encode object %s: %s", fileName, ioe.getMessage());
+            return;
+        }
+
+        boolean schedule;
+        synchronized (pending) {
+            pending.put(fileName, data);
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+
+        if (schedule) {
+            try {
+                writer.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // Store was closed, so write the data right away.
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes all pending data to disk, from the calling thread.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            Map<String, byte[]> toWrite;
+            synchronized (pending) {
+                toWrite = new HashMap<>(pending);
+                flushScheduled = false;
+            }
+
+            for (Map.Entry<String, byte[]> e : toWrite.entrySet()) {
+                write(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes all pending data and stops the background writer.
+     */
+    public void close() {
+        writer.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Writes data to a file, and then removes it from the pending map,
+     * unless a newer version has been queued in the meantime.
+     */
+    private void write(String fileName, byte[] data) {
+        AtomicFile file = getFile(fileName);
+        if (data == null) {
+            file.delete();
+        } else {
+            FileOutputStream out = null;
+            try {
+                out = file.startWrite();
+                out.write(data);
+                file.finishWrite(out);
+            } catch (Exception e) {
+                if (out != null) {
+                    file.failWrite(out);
+                }
+                Log.info("Cannot save object %s: %s", fileName, e.getMessage());
+            }
+        }
+
+        synchronized (pending) {
+            pending.remove(fileName, data);
+        }
+    }
+
+    private AtomicFile getFile(String fileName) {
+        return new AtomicFile(new File(context.getFilesDir(), fileName));
+    }
+
+    static <T> byte[] encode(T obj, Codec<T> codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(obj, new DataOutputStream(bytes));
+
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream(data.length + 16);
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+        return file.toByteArray();
+    }
+
+    /**
+     * Decodes the contents of a state file, which may be in the binary
+     * format or (for files written by older versions) Java serialization.
+     */
+    static <T> T decode(byte[] data, Class<T> klass, Codec<T> codec)
+        throws IOException, ClassNotFoundException
+    {
+        if (isSerialized(data)) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                return klass.cast(in.readObject());
+            }
+        }
+
+        return readData(new ByteArrayInputStream(data), codec);
+    }
+
+    private static boolean isSerialized(byte[] data) {
+        return data.length >= 2 &&
+            (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) == SERIALIZATION_MAGIC;
+    }
+
+    private static <T> T readData(ByteArrayInputStream file, Codec<T> codec)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(file);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Unknown file format.");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+
+        // The length is not covered by the checksum, so make sure it fits in
+        // what's left of the file before allocating a buffer for it.
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || length > file.available()) {
+            throw new IOException("Invalid data length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch.");
+        }
+
+        return codec.read(new DataInputStream(new ByteArrayInputStream(data)), version);
+    }
+
+    /* Helpers for codecs. */
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes an int array as a single block, which is a lot faster to
+     * read back than individual ints.
+     */
+    static void writeInts(DataOutput out, int[] values, int count) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(count * Integer.BYTES);
+        buf.asIntBuffer().put(values, 0, count);
+        out.writeInt(count);
+        out.write(buf.array());
+    }
+
+    static int[] readInts(DataInput in) throws IOException {
+        int count = readCount(in);
+        byte[] bytes = new byte[count * Integer.BYTES];
+        in.readFully(bytes);
+
+        int[] values = new int[count];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+}
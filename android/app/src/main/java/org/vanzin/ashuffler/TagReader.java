@@ -0,0 +1,604 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads track tags directly from MP3 (ID3v2), FLAC and MP4 files.
+ * <p>
+ * This avoids starting the platform's native extractors just to read a
+ * few strings. Only the tag structures are read, with positional reads
+ * into a small per-thread buffer; large blocks that are not needed (like
+ * embedded pictures or the audio data itself) are skipped without being
+ * read.
+ * <p>
+ * Besides the tags, the reader needs to figure out the track's duration:
+ * for FLAC and MP4 it comes from the stream headers; for MP3 it comes
+ * from the TLEN frame if present, otherwise from the Xing / VBRI header
+ * of the first audio frame, or estimated from the bit rate for CBR
+ * files.
+ * <p>
+ * Files that can't be handled (unknown formats, unusual tag features,
+ * tag structures that extend past the end of the file, or no known
+ * duration) make {@link #read(String)} return null, in which case
+ * callers should fall back to MediaMetadataRetriever.
+ */
+class TagReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    // ID3v2.3 / v2.4 frame ids.
+    private static final int TIT2 = 0x54495432;
+    private static final int TALB = 0x54414c42;
+    private static final int TPE1 = 0x54504531;
+    private static final int TRCK = 0x5452434b;
+    private static final int TPOS = 0x54504f53;
+    private static final int TLEN = 0x544c454e;
+
+    // ID3v2.2 frame ids.
+    private static final int TT2 = 0x545432;
+    private static final int TAL = 0x54414c;
+    private static final int TP1 = 0x545031;
+    private static final int TRK = 0x54524b;
+    private static final int TPA = 0x545041;
+    private static final int TLE = 0x544c45;
+
+    // MP4 atom types.
+    private static final int FTYP = 0x66747970;
+    private static final int MOOV = 0x6d6f6f76;
+    private static final int MVHD = 0x6d766864;
+    private static final int UDTA = 0x75647461;
+    private static final int META = 0x6d657461;
+    private static final int HDLR = 0x68646c72;
+    private static final int ILST = 0x696c7374;
+    private static final int DATA = 0x64617461;
+    private static final int NAM = 0xa96e616d;
+    private static final int ALB = 0xa9616c62;
+    private static final int ART = 0xa9415254;
+    private static final int TRKN = 0x74726b6e;
+    private static final int DISK = 0x6469736b;
+
+    private static final int FLAC = 0x664c6143;
+    private static final int FLAC_STREAMINFO = 0;
+    private static final int FLAC_VORBIS_COMMENT = 4;
+
+    private static final int XING = 0x58696e67;
+    private static final int INFO = 0x496e666f;
+    private static final int VBRI = 0x56425249;
+
+    private static final int[] MP3_BITRATES_V1 = {
+        0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320,
+    };
+    private static final int[] MP3_BITRATES_V2 = {
+        0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160,
+    };
+    private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    private final FileChannel ch;
+    private final long fileSize;
+
+    private String title;
+    private String album;
+    private String artist;
+    private String trackNumber;
+    private String discNumber;
+    private long duration;
+
+    private TagReader(FileChannel ch) throws IOException {
+        this.ch = ch;
+        this.fileSize = ch.size();
+    }
+
+    /**
+     * Reads the tags of the given file.
+     *
+     * @return The track info, or null if the file can't be handled.
+     */
+    static TrackInfo read(String path) {
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            TagReader reader = new TagReader(ch);
+            if (!reader.parse() || reader.duration <= 0 ||
+                reader.duration > Integer.MAX_VALUE) {
+                return null;
+            }
+            return reader.toTrackInfo(path);
+        } catch (IOException | RuntimeException e) {
+            Log.debug("Cannot parse tags from %s: %s", path, e);
+            return null;
+        }
+    }
+
+    private TrackInfo toTrackInfo(String path) {
+        // Same defaults as when the tags are read by the platform.
+        int track = 1;
+        int disc = -1;
+        try {
+            track = TrackInfo.parseInt(trackNumber);
+            if (discNumber != null) {
+                disc = TrackInfo.parseInt(discNumber);
+            }
+        } catch (NumberFormatException nfe) {
+            // Keep the defaults.
+        }
+        return new TrackInfo(path, title, album, artist, track, disc, (int) duration);
+    }
+
+    private boolean parse() throws IOException {
+        ByteBuffer buf = read(0, 12);
+        if (buf.limit() < 12) {
+            return false;
+        }
+
+        if (buf.get(0) == 'I' && buf.get(1) == 'D' && buf.get(2) == '3') {
+            return parseId3();
+        }
+        if (buf.getInt(0) == FLAC) {
+            return parseFlac();
+        }
+        if (buf.getInt(4) == FTYP) {
+            return parseAtoms(0, fileSize, 0);
+        }
+        if (isFrameSync(buf.getInt(0))) {
+            return parseMpegAudio(0);
+        }
+        return false;
+    }
+
+    private boolean parseId3() throws IOException {
+        ByteBuffer buf = read(0, 10);
+        int version = buf.get(3);
+        int flags = buf.get(5) & 0xFF;
+        long end = 10L + syncsafe(buf.getInt(6));
+        long audioStart = end + ((flags & 0x10) != 0 ? 10 : 0);
+
+        // Tag-wide unsynchronisation is rare enough that it's not worth
+        // handling here.
+        if (version < 2 || version > 4 || (flags & 0x80) != 0 || end > fileSize) {
+            return false;
+        }
+
+        long pos = 10;
+        if (version > 2 && (flags & 0x40) != 0) {
+            int extSize = read(pos, 4).getInt(0);
+            pos += version == 4 ? syncsafe(extSize) : extSize + 4;
+        }
+
+        int headerSize = version == 2 ? 6 : 10;
+        // Frames with compression, encryption, unsynchronisation or other
+        // extra data before the contents are skipped.
+        int skipFlags = version == 4 ? 0x4F : 0xE0;
+
+        while (pos + headerSize <= end) {
+            buf = read(pos, headerSize);
+            int id;
+            int size;
+            int frameFlags = 0;
+            if (version == 2) {
+                id = buf.getInt(0) >>> 8;
+                size = ((buf.get(3) & 0xFF) << 16) | (buf.getShort(4) & 0xFFFF);
+            } else {
+                id = buf.getInt(0);
+                size = version == 4 ? syncsafe(buf.getInt(4)) : buf.getInt(4);
+                frameFlags = buf.getShort(8);
+            }
+
+            // Zero means the padding at the end of the tag was reached.
+            if (id == 0 || size < 0 || pos + headerSize + size > end) {
+                break;
+            }
+
+            long body = pos + headerSize;
+            pos = body + size;
+            if ((frameFlags & skipFlags) != 0) {
+                continue;
+            }
+
+            switch (id) {
+                case TIT2:
+                case TT2:
+                    title = id3Text(body, size);
+                    break;
+                case TALB:
+                case TAL:
+                    album = id3Text(body, size);
+                    break;
+                case TPE1:
+                case TP1:
+                    artist = id3Text(body, size);
+                    break;
+                case TRCK:
+                case TRK:
+                    trackNumber = id3Text(body, size);
+                    break;
+                case TPOS:
+                case TPA:
+                    discNumber = id3Text(body, size);
+                    break;
+                case TLEN:
+                case TLE:
+                    String len = id3Text(body, size);
+                    try {
+                        duration = len != null ? Long.parseLong(len) : 0;
+                    } catch (NumberFormatException nfe) {
+                        duration = 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return duration > 0 || parseMpegAudio(audioStart);
+    }
+
+    private String id3Text(long pos, int size) throws IOException {
+        if (size < 2 || size > BUFFER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buf = read(pos, size);
+        Charset cs;
+        switch (buf.get(0)) {
+            case 0:
+                cs = StandardCharsets.ISO_8859_1;
+                break;
+            case 1:
+                cs = StandardCharsets.UTF_16;
+                break;
+            case 2:
+                cs = StandardCharsets.UTF_16BE;
+                break;
+            case 3:
+                cs = StandardCharsets.UTF_8;
+                break;
+            default:
+                return null;
+        }
+        return text(buf, 1, buf.limit() - 1, cs);
+    }
+
+    /**
+     * Finds the first MPEG audio frame at or after the given position,
+     * and calculates the duration from it.
+     */
+    private boolean parseMpegAudio(long start) throws IOException {
+        // Allow for some junk between the tag and the first frame.
+        int window = (int) Math.min(8 * 1024, fileSize - start);
+        if (window < 4) {
+            return false;
+        }
+
+        ByteBuffer buf = read(start, window);
+        for (int i = 0; i + 4 <= buf.limit(); i++) {
+            int header = buf.getInt(i);
+            if (!isFrameSync(header)) {
+                continue;
+            }
+
+            int version = (header >>> 19) & 3;
+            int layer = (header >>> 17) & 3;
+            int bitrateIdx = (header >>> 12) & 0xF;
+            int rateIdx = (header >>> 10) & 3;
+            // Only layer III (i.e. MP3) is handled.
+            if (version == 1 || layer != 1 || bitrateIdx == 0 || bitrateIdx == 15 ||
+                rateIdx == 3) {
+                continue;
+            }
+
+            boolean v1 = version == 3;
+            boolean mono = ((header >>> 6) & 3) == 3;
+            int bitrate = (v1 ? MP3_BITRATES_V1 : MP3_BITRATES_V2)[bitrateIdx];
+            int sampleRate = MP3_SAMPLE_RATES[rateIdx] >> (v1 ? 0 : (version == 2 ? 1 : 2));
+            int samplesPerFrame = v1 ? 1152 : 576;
+
+            // VBR files have a Xing (or VBRI) header after the side info
+            // of the first frame, with the number of frames in the file.
+            int sideInfo = v1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            int xing = i + 4 + sideInfo;
+            if (xing + 12 <= buf.limit()) {
+                int tag = buf.getInt(xing);
+                if ((tag == XING || tag == INFO) && (buf.getInt(xing + 4) & 1) != 0) {
+                    long frames = buf.getInt(xing + 8) & 0xFFFFFFFFL;
+                    duration = frames * samplesPerFrame * 1000 / sampleRate;
+                    return true;
+                }
+            }
+
+            int vbri = i + 4 + 32;
+            if (vbri + 18 <= buf.limit() && buf.getInt(vbri) == VBRI) {
+                long frames = buf.getInt(vbri + 14) & 0xFFFFFFFFL;
+                duration = frames * samplesPerFrame * 1000 / sampleRate;
+                return true;
+            }
+
+            // Otherwise assume a constant bit rate (in kbps, which makes
+            // bytes * 8 / bitrate come out in milliseconds).
+            duration = (fileSize - start - i) * 8 / bitrate;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean parseFlac() throws IOException {
+        long pos = 4;
+        boolean last = false;
+        while (!last && pos + 4 <= fileSize) {
+            int header = read(pos, 4).getInt(0);
+            last = (header & 0x80000000) != 0;
+            int type = (header >>> 24) & 0x7F;
+            int length = header & 0xFFFFFF;
+            long body = pos + 4;
+            pos = body + length;
+            if (pos > fileSize) {
+                return false;
+            }
+
+            if (type == FLAC_STREAMINFO && length >= 18) {
+                ByteBuffer buf = read(body, 18);
+                int sampleRate = ((buf.get(10) & 0xFF) << 12) |
+                    ((buf.get(11) & 0xFF) << 4) |
+                    ((buf.get(12) & 0xFF) >>> 4);
+                long samples = ((long) (buf.get(13) & 0x0F) << 32) |
+                    (buf.getInt(14) & 0xFFFFFFFFL);
+                if (sampleRate > 0) {
+                    duration = samples * 1000 / sampleRate;
+                }
+            } else if (type == FLAC_VORBIS_COMMENT) {
+                if (length > BUFFER_SIZE) {
+                    return false;
+                }
+                parseVorbisComments(read(body, length));
+            }
+        }
+        return true;
+    }
+
+    private void parseVorbisComments(ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int pos = 4 + buf.getInt(0);
+            int count = buf.getInt(pos);
+            pos += 4;
+            for (int i = 0; i < count && pos + 4 <= buf.limit(); i++) {
+                int length = buf.getInt(pos);
+                pos += 4;
+                if (length < 0 || pos + length > buf.limit()) {
+                    break;
+                }
+                vorbisComment(buf, pos, length);
+                pos += length;
+            }
+        } finally {
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    private void vorbisComment(ByteBuffer buf, int pos, int length) {
+        int sep = -1;
+        for (int i = 0; i < length; i++) {
+            if (buf.get(pos + i) == '=') {
+                sep = i;
+                break;
+            }
+        }
+        if (sep <= 0) {
+            return;
+        }
+
+        String key = new String(buf.array(), buf.arrayOffset() + pos, sep,
+            StandardCharsets.US_ASCII);
+        int valuePos = pos + sep + 1;
+        int valueLength = length - sep - 1;
+        if (key.equalsIgnoreCase("TITLE")) {
+            title = text(buf, valuePos, valueLength, StandardCharsets.UTF_8);
+        } else if (key.equalsIgnoreCase("ALBUM")) {
+            album = text(buf, valuePos, valueLength, StandardCharsets.UTF_8);
+        } else if (key.equalsIgnoreCase("ARTIST")) {
+            artist = text(buf, valuePos, valueLength, StandardCharsets.UTF_8);
+        } else if (key.equalsIgnoreCase("TRACKNUMBER")) {
+            trackNumber = text(buf, valuePos, valueLength, StandardCharsets.UTF_8);
+        } else if (key.equalsIgnoreCase("DISCNUMBER")) {
+            discNumber = text(buf, valuePos, valueLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Walks the MP4 atoms in the given range, descending only into the
+     * ones that lead to the movie header and the iTunes-style tags.
+     *
+     * @return Whether the atoms fit in the range.
+     */
+    private boolean parseAtoms(long start, long end, int parent) throws IOException {
+        long pos = start;
+        while (pos + 8 <= end) {
+            ByteBuffer buf = read(pos, (int) Math.min(16, end - pos));
+            long size = buf.getInt(0) & 0xFFFFFFFFL;
+            int type = buf.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (buf.limit() < 16) {
+                    return false;
+                }
+                size = buf.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < headerSize || size > end - pos) {
+                return false;
+            }
+
+            long body = pos + headerSize;
+            long next = pos + size;
+            switch (type) {
+                case MOOV:
+                case UDTA:
+                case ILST:
+                    if (!parseAtoms(body, next, type)) {
+                        return false;
+                    }
+                    break;
+                case META:
+                    // Usually a "full" atom with version and flags before
+                    // its children, but not always.
+                    if (next - body >= 8 && read(body, 8).getInt(4) != HDLR) {
+                        body += 4;
+                    }
+                    if (!parseAtoms(body, next, type)) {
+                        return false;
+                    }
+                    break;
+                case MVHD:
+                    parseMovieHeader(body, next);
+                    break;
+                case NAM:
+                case ALB:
+                case ART:
+                case TRKN:
+                case DISK:
+                    if (parent == ILST) {
+                        parseItem(type, body, next);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos = next;
+        }
+        return true;
+    }
+
+    private void parseMovieHeader(long start, long end) throws IOException {
+        if (end - start < 32) {
+            return;
+        }
+
+        ByteBuffer buf = read(start, 32);
+        long timescale;
+        long length;
+        if (buf.get(0) == 1) {
+            timescale = buf.getInt(20) & 0xFFFFFFFFL;
+            length = buf.getLong(24);
+        } else {
+            timescale = buf.getInt(12) & 0xFFFFFFFFL;
+            length = buf.getInt(16) & 0xFFFFFFFFL;
+        }
+        if (timescale > 0 && length > 0) {
+            duration = length * 1000 / timescale;
+        }
+    }
+
+    private void parseItem(int type, long start, long end) throws IOException {
+        // The value is in a "data" atom: size, type, 4 bytes of version and
+        // flags (the type of the value), 4 bytes of locale, then the value.
+        long size = end - start;
+        if (size < 16 || size > BUFFER_SIZE) {
+            return;
+        }
+
+        ByteBuffer buf = read(start, (int) size);
+        int dataSize = buf.getInt(0);
+        if (buf.getInt(4) != DATA || dataSize < 16 || dataSize > size) {
+            return;
+        }
+
+        if (type == TRKN || type == DISK) {
+            // Binary: 2 bytes of padding, number, total.
+            if (dataSize >= 20) {
+                String number = String.valueOf(buf.getShort(18) & 0xFFFF);
+                if (type == TRKN) {
+                    trackNumber = number;
+                } else {
+                    discNumber = number;
+                }
+            }
+            return;
+        }
+
+        String value = text(buf, 16, dataSize - 16, StandardCharsets.UTF_8);
+        switch (type) {
+            case NAM:
+                title = value;
+                break;
+            case ALB:
+                album = value;
+                break;
+            case ART:
+                artist = value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Reads data at the given position of the file into the shared
+     * buffer. The returned buffer is only valid until the next read.
+     */
+    private ByteBuffer read(long pos, int length) throws IOException {
+        if (length > BUFFER_SIZE) {
+            throw new IOException("Block too large: " + length);
+        }
+
+        ByteBuffer buf = BUFFER.get();
+        buf.clear();
+        buf.limit(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes a string, keeping only the first value of lists of
+     * NUL-separated values.
+     */
+    private static String text(ByteBuffer buf, int pos, int length, Charset cs) {
+        String value = new String(buf.array(), buf.arrayOffset() + pos, length, cs);
+        int nul = value.indexOf('\0');
+        if (nul >= 0) {
+            value = value.substring(0, nul);
+        }
+        value = value.trim();
+        return !value.isEmpty() ? value : null;
+    }
+
+    private static boolean isFrameSync(int header) {
+        return (header & 0xFFE00000) == 0xFFE00000;
+    }
+
+    private static int syncsafe(int value) {
+        return ((value >>> 24) & 0x7F) << 21 |
+            ((value >>> 16) & 0x7F) << 14 |
+            ((value >>> 8) & 0x7F) << 7 |
+            (value & 0x7F);
+    }
+
+}
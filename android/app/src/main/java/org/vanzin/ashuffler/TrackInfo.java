@@ -16,10 +16,11 @@
 package org.vanzin.ashuffler;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
 
-import java.io.File;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -27,11 +28,44 @@ import java.io.Serializable;
  * <p>
  * Caches the tags from the track that the player's UI and notifications
  * use, to avoid having to re-fetch them.
+ * <p>
+ * Saved using {@link #CODEC}; Java serialization is only kept to be
+ * able to read data saved by older versions.
  */
 class TrackInfo implements Serializable {
 
     public static final long serialVersionUID = 4735383483858487459L;
 
+    static final StateStore.Codec<TrackInfo> CODEC = new StateStore.Codec<TrackInfo>() {
+
+        @Override
+        public void write(TrackInfo info, DataOutput out) throws IOException {
+            StateStore.writeString(out, info.path);
+            StateStore.writeString(out, info.title);
+            StateStore.writeString(out, info.album);
+            StateStore.writeString(out, info.artist);
+            out.writeInt(info.trackNumber);
+            out.writeInt(info.discNumber);
+            out.writeInt(info.duration);
+            out.writeInt(info.elapsedTime);
+        }
+
+        @Override
+        public TrackInfo read(DataInput in, int version) throws IOException {
+            TrackInfo info = new TrackInfo(
+                StateStore.readString(in),
+                StateStore.readString(in),
+                StateStore.readString(in),
+                StateStore.readString(in),
+                in.readInt(),
+                in.readInt(),
+                in.readInt());
+            info.elapsedTime = in.readInt();
+            return info;
+        }
+
+    };
+
     private final String path;
     private final String title;
     private final String album;
@@ -41,9 +75,6 @@ class TrackInfo implements Serializable {
     private final int duration;
     private int elapsedTime;
 
-    private transient Bitmap artwork;
-    private transient boolean artworkIsSet;
-
     public TrackInfo(String path, MediaMetadataRetriever md, int duration) {
         this.path = path;
         this.title =
@@ -65,6 +96,50 @@ class TrackInfo implements Serializable {
         }
     }
 
+    /**
+     * Creates the info from the track's metadata alone, without needing
+     * a prepared MediaPlayer for the duration.
+     */
+    public TrackInfo(String path, MediaMetadataRetriever md) {
+        this(path, md, parseDuration(
+            md.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)));
+    }
+
+    TrackInfo(String path,
+        String title,
+        String album,
+        String artist,
+        int trackNumber,
+        int discNumber,
+        int duration)
+    {
+        this.path = path;
+        this.title = title;
+        this.album = album;
+        this.artist = artist;
+        this.trackNumber = trackNumber;
+        this.discNumber = discNumber;
+        this.duration = duration;
+    }
+
+    /**
+     * Returns a copy of this info, which doesn't see later updates to the
+     * elapsed time.
+     */
+    public TrackInfo copy() {
+        return withDuration(duration);
+    }
+
+    /**
+     * Returns a copy of this info with the given duration.
+     */
+    public TrackInfo withDuration(int duration) {
+        TrackInfo copy = new TrackInfo(path, title, album, artist, trackNumber, discNumber,
+            duration);
+        copy.elapsedTime = elapsedTime;
+        return copy;
+    }
+
     public String getPath() {
         return path;
     }
@@ -93,23 +168,13 @@ class TrackInfo implements Serializable {
         return duration;
     }
 
-    public Bitmap getArtwork() {
-        if (!new File(path).isFile()) {
-            return null;
-        }
-
-        if (!artworkIsSet) {
-          MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-          mmr.setDataSource(getPath());
-
-          byte[] coverArt = mmr.getEmbeddedPicture();
-          if (coverArt != null) {
-              artwork = BitmapFactory.decodeByteArray(coverArt, 0, coverArt.length);
-          }
-        }
-
-        artworkIsSet = true;
-        return artwork;
+    /**
+     * Returns the track's embedded artwork decoded for the given size, or
+     * null if it has none. The bitmap is shared with other tracks of the
+     * same album through the {@link ArtworkCache}.
+     */
+    public Bitmap getArtwork(ArtworkCache.Size size) {
+        return ArtworkCache.get().getArtwork(path, size);
     }
 
     public int getElapsedTime() {
@@ -120,7 +185,15 @@ class TrackInfo implements Serializable {
         this.elapsedTime = time;
     }
 
-    private static int parseInt(String intish) {
+    private static int parseDuration(String duration) {
+        try {
+            return duration != null ? Integer.parseInt(duration.trim()) : 0;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    static int parseInt(String intish) {
         if (intish == null) {
             return 1;
         }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import org.vanzin.ashuffler.PlayerControl.Command;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+
+    @Test
+    public void testMergeTrackChanges() {
+        CommandQueue queue = new CommandQueue();
+        assertTrue(queue.add(Command.NEXT_TRACK, null, null));
+        for (int i = 0; i < 4; i++) {
+            assertFalse(queue.add(Command.NEXT_TRACK, null, null));
+        }
+        assertFalse(queue.add(Command.PREV_TRACK, null, null));
+
+        CommandQueue.Entry e = queue.poll();
+        assertEquals(Command.NEXT_TRACK, e.cmd);
+        assertEquals(4, e.delta);
+        assertNull(queue.poll());
+        assertEquals(5, queue.getMerged());
+    }
+
+    @Test
+    public void testMergeOnlyWithLast() {
+        CommandQueue queue = new CommandQueue();
+        queue.add(Command.NEXT_FOLDER, null, null);
+        queue.add(Command.PREV_FOLDER, null, null);
+        queue.add(Command.NEXT_TRACK, null, null);
+        queue.add(Command.NEXT_FOLDER, null, null);
+
+        assertEntry(queue.poll(), Command.NEXT_FOLDER, 0);
+        assertEntry(queue.poll(), Command.NEXT_TRACK, 1);
+        assertEntry(queue.poll(), Command.NEXT_FOLDER, 1);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testLastSeekWins() {
+        CommandQueue queue = new CommandQueue();
+        queue.add(Command.SEEK, new String[] { "1000" }, null);
+        queue.add(Command.SEEK, new String[] { "2000" }, null);
+        queue.add(Command.SEEK, new String[] { "3000" }, null);
+
+        CommandQueue.Entry e = queue.poll();
+        assertEquals(Command.SEEK, e.cmd);
+        assertArrayEquals(new String[] { "3000" }, e.args);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFinishCurrentNotMerged() {
+        CommandQueue queue = new CommandQueue();
+        queue.add(Command.NEXT_TRACK, null, null);
+        queue.add(Command.FINISH_CURRENT, null, null);
+        queue.add(Command.FINISH_CURRENT, null, null);
+        queue.add(Command.NEXT_TRACK, null, null);
+
+        assertEntry(queue.poll(), Command.NEXT_TRACK, 1);
+        assertEntry(queue.poll(), Command.FINISH_CURRENT, 0);
+        assertEntry(queue.poll(), Command.FINISH_CURRENT, 0);
+        assertEntry(queue.poll(), Command.NEXT_TRACK, 1);
+        assertNull(queue.poll());
+        assertEquals(0, queue.getMerged());
+    }
+
+    @Test
+    public void testUrgentCommands() {
+        CommandQueue queue = new CommandQueue();
+
+        // With nothing else queued, urgent commands run once.
+        queue.add(Command.PAUSE, null, null);
+        assertEntry(queue.poll(), Command.PAUSE, 0);
+        assertNull(queue.poll());
+
+        // Otherwise they run first, and again after the queued commands.
+        queue.add(Command.NEXT_TRACK, null, null);
+        queue.add(Command.SEEK, new String[] { "1000" }, null);
+        queue.add(Command.UNSET_AUDIO_FOCUS, null, null);
+        queue.add(Command.PAUSE, null, null);
+
+        assertEntry(queue.poll(), Command.UNSET_AUDIO_FOCUS, 0);
+        assertEntry(queue.poll(), Command.PAUSE, 0);
+        assertEntry(queue.poll(), Command.NEXT_TRACK, 1);
+        assertEntry(queue.poll(), Command.SEEK, 0);
+        assertEntry(queue.poll(), Command.UNSET_AUDIO_FOCUS, 0);
+        assertEntry(queue.poll(), Command.PAUSE, 0);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testStopDiscardsQueued() throws Exception {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<TrackInfo> next = new CompletableFuture<>();
+        CompletableFuture<TrackInfo> stop = new CompletableFuture<>();
+        queue.add(Command.NEXT_TRACK, null, next);
+        queue.add(Command.PAUSE, null, null);
+        queue.add(Command.STOP, null, stop);
+
+        // Commands queued after the stop still run.
+        queue.add(Command.PLAY, null, null);
+
+        assertTrue(next.isCancelled());
+        assertEntry(queue.poll(), Command.PAUSE, 0);
+        CommandQueue.Entry e = queue.poll();
+        assertEntry(e, Command.STOP, 0);
+        e.complete(null);
+        assertNull(stop.get());
+        assertEntry(queue.poll(), Command.PLAY, 0);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDrainScheduling() {
+        CommandQueue queue = new CommandQueue();
+        assertTrue(queue.add(Command.NEXT_TRACK, null, null));
+        assertFalse(queue.add(Command.PLAY, null, null));
+        assertFalse(queue.add(Command.PAUSE, null, null));
+
+        // Still draining until poll() finds the queue empty.
+        assertNotNull(queue.poll());
+        assertFalse(queue.add(Command.NEXT_FOLDER, null, null));
+        while (queue.poll() != null) {
+            // Drain.
+        }
+        assertTrue(queue.add(Command.PLAY, null, null));
+    }
+
+    @Test
+    public void testFutures() throws Exception {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<TrackInfo> first = new CompletableFuture<>();
+        CompletableFuture<TrackInfo> merged = new CompletableFuture<>();
+        CompletableFuture<TrackInfo> pause = new CompletableFuture<>();
+        CompletableFuture<TrackInfo> failed = new CompletableFuture<>();
+
+        queue.add(Command.NEXT_TRACK, null, first);
+        queue.add(Command.NEXT_TRACK, null, merged);
+        queue.add(Command.PAUSE, null, pause);
+        queue.add(Command.PLAY, null, failed);
+
+        // The urgent copy doesn't complete the caller's future; the one that
+        // runs in order does.
+        CommandQueue.Entry e = queue.poll();
+        assertEquals(Command.PAUSE, e.cmd);
+        assertFalse(e.hasFutures());
+        queue.recycle(e);
+
+        TrackInfo info = new TrackInfo("/music/a/01.mp3", "Title", "Album", "Artist", 1, -1,
+            1000);
+        e = queue.poll();
+        assertEquals(Command.NEXT_TRACK, e.cmd);
+        assertTrue(e.hasFutures());
+        e.complete(info);
+        queue.recycle(e);
+        assertSame(info, first.get());
+        assertSame(info, merged.get());
+        assertFalse(pause.isDone());
+
+        e = queue.poll();
+        assertEquals(Command.PAUSE, e.cmd);
+        e.complete(null);
+        queue.recycle(e);
+        assertNull(pause.get());
+
+        e = queue.poll();
+        assertEquals(Command.PLAY, e.cmd);
+        e.fail(new IllegalStateException());
+        queue.recycle(e);
+        try {
+            failed.get();
+            fail("Future should have failed.");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testCancelAll() {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<TrackInfo> next = new CompletableFuture<>();
+        CompletableFuture<TrackInfo> pause = new CompletableFuture<>();
+        queue.add(Command.NEXT_TRACK, null, next);
+        queue.add(Command.PAUSE, null, pause);
+
+        queue.cancelAll();
+        assertTrue(next.isCancelled());
+        assertTrue(pause.isCancelled());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testRecycle() {
+        CommandQueue queue = new CommandQueue();
+        queue.add(Command.SEEK, new String[] { "1000" }, new CompletableFuture<>());
+        CommandQueue.Entry e = queue.poll();
+        queue.recycle(e);
+        assertNull(queue.poll());
+
+        // The entry is reused, without the previous command's state.
+        queue.add(Command.PREV_TRACK, null, null);
+        CommandQueue.Entry reused = queue.poll();
+        assertSame(e, reused);
+        assertEntry(reused, Command.PREV_TRACK, -1);
+        assertNull(reused.args);
+        assertFalse(reused.hasFutures());
+    }
+
+    private static void assertEntry(CommandQueue.Entry e, Command cmd, int delta) {
+        assertNotNull(e);
+        assertEquals(cmd, e.cmd);
+        assertEquals(delta, e.delta);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The fields of PlayerState as it was before it got its own serialized
+ * form, used to create state files like the ones written by the first
+ * versions of the player.
+ * <p>
+ * The class name has the same length as "PlayerState", so that it can
+ * be replaced in the serialized data.
+ */
+class LegacyState implements Serializable {
+
+    public static final long serialVersionUID = 3999248501740180351L;
+
+    int currentFolder;
+    final List<String> folders = new LinkedList<>();
+
+    int currentTrack;
+    List<String> tracks = new LinkedList<>();
+
+    /**
+     * Serializes this object as if it were an old PlayerState.
+     */
+    byte[] serializeAsPlayerState() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(this);
+        }
+
+        byte[] data = bytes.toByteArray();
+        byte[] from = LegacyState.class.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] to = PlayerState.class.getName().getBytes(StandardCharsets.UTF_8);
+        int idx = indexOf(data, from);
+        if (idx < 0 || from.length != to.length) {
+            throw new IllegalStateException("Cannot find class name.");
+        }
+        System.arraycopy(to, 0, data, idx, to.length);
+        return data;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the serial (recursive) and parallel library scanners on a
+ * synthetic tree, for both a full scan of a new library and a scan of
+ * an unchanged one.
+ * <p>
+ * Not run as part of the unit tests. Usage:
+ *
+ * <pre>
+ *   LibraryScannerBenchmark [artists] [albums per artist] [tracks per album] [threads]
+ * </pre>
+ *
+ * The defaults create 4,000 albums with 12 tracks each.
+ */
+public class LibraryScannerBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int artists = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int albums = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int tracks = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) :
+            Runtime.getRuntime().availableProcessors();
+
+        Path root = Files.createTempDirectory("scan-bench");
+        try {
+            LibraryScannerTest.createTree(root.toFile(), artists, albums, tracks);
+            System.out.printf("Tree: %d albums, %d tracks; %d threads.%n",
+                artists * albums, artists * albums * tracks, threads);
+
+            for (int i = 0; i < ROUNDS; i++) {
+                run("serial", root.toFile(), LibraryScanner.serial());
+                run("parallel", root.toFile(), LibraryScanner.parallel(threads));
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void run(String name, File root, LibraryScanner scanner) {
+        LibraryIndex index = new LibraryIndex();
+        long start = System.nanoTime();
+        index.update(root, scanner);
+        long full = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        index.update(root, scanner);
+        long unchanged = System.nanoTime() - start;
+
+        System.out.printf("%-8s full scan: %5d ms, no-change scan: %5d ms%n", name,
+            TimeUnit.NANOSECONDS.toMillis(full), TimeUnit.NANOSECONDS.toMillis(unchanged));
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LibraryScannerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSameDirectories() throws Exception {
+        File root = tmp.newFolder("music");
+        createTree(root, 3, 4, 2);
+
+        Set<String> serial = visitAll(root, LibraryScanner.serial());
+        Set<String> parallel = visitAll(root, LibraryScanner.parallel(4));
+        // Root, 3 artists, 12 albums.
+        assertEquals(16, serial.size());
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void testIndexUpdate() throws Exception {
+        File root = tmp.newFolder("music");
+        createTree(root, 5, 6, 3);
+
+        LibraryIndex serial = new LibraryIndex();
+        LibraryIndex.Diff diff = serial.update(root, LibraryScanner.serial());
+        assertEquals(30, diff.getAdded().size());
+
+        LibraryIndex parallel = new LibraryIndex();
+        parallel.update(root, LibraryScanner.parallel(4));
+        assertEquals(serial.getDirectories(), parallel.getDirectories());
+        assertEquals(serial.getFolders(), parallel.getFolders());
+        for (String folder : serial.getFolders()) {
+            assertEquals(serial.getTracks(folder), parallel.getTracks(folder));
+        }
+    }
+
+    @Test
+    public void testIndexRefresh() throws Exception {
+        File root = tmp.newFolder("music");
+        createTree(root, 1, 2, 2);
+        LibraryIndex index = new LibraryIndex();
+        index.update(root, LibraryScanner.serial());
+
+        File album = new File(root, "artist0/album0");
+        String path = album.getAbsolutePath();
+        assertFalse(index.refresh(path).isChanged());
+
+        // Emptied album: reported as removed. The mtimes are set explicitly,
+        // since the changes may happen within the file system's resolution.
+        for (File track : album.listFiles()) {
+            assertTrue(track.delete());
+        }
+        assertTrue(album.setLastModified(album.lastModified() - 10000));
+        LibraryIndex.Diff diff = index.refresh(path);
+        assertTrue(diff.isChanged());
+        assertEquals(path, diff.getRemoved().get(0));
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(index.getTracks(path).isEmpty());
+        assertFalse(index.getFolders().contains(path));
+
+        // Tracks added back.
+        assertTrue(new File(album, "01.mp3").createNewFile());
+        assertTrue(album.setLastModified(album.lastModified() - 20000));
+        diff = index.refresh(path);
+        assertEquals(path, diff.getAdded().get(0));
+        assertTrue(diff.getRemoved().isEmpty());
+
+        // Deleted album.
+        File other = new File(root, "artist0/album1");
+        for (File track : other.listFiles()) {
+            assertTrue(track.delete());
+        }
+        assertTrue(other.delete());
+        diff = index.refresh(other.getAbsolutePath());
+        assertTrue(diff.isChanged());
+        assertEquals(other.getAbsolutePath(), diff.getRemoved().get(0));
+        assertFalse(index.getDirectories().contains(other.getAbsolutePath()));
+
+        // Unknown folders without tracks are reported as removed too.
+        diff = index.refresh(new File(root, "missing").getAbsolutePath());
+        assertFalse(diff.isChanged());
+        assertEquals(1, diff.getRemoved().size());
+    }
+
+    @Test
+    public void testSingleThread() {
+        // A parallelism of 1 doesn't need a pool.
+        assertSame(LibraryScanner.serial().getClass(),
+            LibraryScanner.parallel(1).getClass());
+    }
+
+    /**
+     * Creates a tree of root/artist/album/track, like a typical music
+     * library.
+     */
+    static void createTree(File root, int artists, int albums, int tracks)
+        throws IOException
+    {
+        for (int i = 0; i < artists; i++) {
+            for (int j = 0; j < albums; j++) {
+                File album = new File(root, String.format("artist%d/album%d", i, j));
+                if (!album.mkdirs()) {
+                    throw new IOException("Cannot create " + album);
+                }
+                for (int k = 0; k < tracks; k++) {
+                    File track = new File(album, String.format("%02d.mp3", k));
+                    if (!track.createNewFile()) {
+                        throw new IOException("Cannot create " + track);
+                    }
+                }
+            }
+        }
+    }
+
+    static Set<String> visitAll(File root, LibraryScanner scanner) {
+        Set<String> visited = ConcurrentHashMap.newKeySet();
+        scanner.scan(root, dir -> {
+            visited.add(dir.getPath());
+            Set<String> children = ConcurrentHashMap.newKeySet();
+            File[] files = dir.listFiles(File::isDirectory);
+            if (files != null) {
+                for (File f : files) {
+                    children.add(f.getPath());
+                }
+            }
+            return children;
+        });
+        return visited;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link LibraryIndex} updates from the events of the java.nio
+ * based watcher, the same way PlayerControl does with FileObserver.
+ */
+public class LibraryWatcherTest {
+
+    private static final long EVENT_TIMEOUT_SECS = 10;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final LibraryIndex index = new LibraryIndex();
+    private File root;
+    private LibraryWatcher<?> watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("music");
+        File album = new File(root, "a");
+        assertTrue(album.mkdir());
+        assertTrue(new File(album, "1.mp3").createNewFile());
+        makeOld(album);
+        makeOld(root);
+
+        index.update(root, LibraryScanner.serial());
+        assertEquals(Collections.singleton(album.getPath()), index.getFolders());
+
+        watcher = new LibraryWatcher.NioWatcher(events::add);
+        watcher.sync(index.getDirectories());
+    }
+
+    @After
+    public void tearDown() {
+        watcher.close();
+    }
+
+    @Test
+    public void testAddedAlbum() throws Exception {
+        // Move a complete album in, so that a single event covers it.
+        File staging = tmp.newFolder("staging");
+        assertTrue(new File(staging, "1.mp3").createNewFile());
+        File added = new File(root, "b");
+        Files.move(staging.toPath(), added.toPath());
+
+        LibraryIndex.Diff diff = update(nextEvent());
+        assertEquals(Collections.singletonList(added.getPath()), diff.getAdded());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertTrue(index.getFolders().contains(added.getPath()));
+        assertEquals(Collections.singletonList(new File(added, "1.mp3").getPath()),
+            index.getTracks(added.getPath()));
+    }
+
+    @Test
+    public void testRemovedTrack() throws Exception {
+        File album = new File(root, "a");
+        assertTrue(new File(album, "1.mp3").delete());
+
+        String changed = nextEvent();
+        assertEquals(album.getPath(), changed);
+        LibraryIndex.Diff diff = update(changed);
+        assertEquals(Collections.singletonList(album.getPath()), diff.getRemoved());
+        assertTrue(index.getFolders().isEmpty());
+    }
+
+    @Test
+    public void testUnwatchedDirectory() throws Exception {
+        watcher.sync(Collections.singleton(root.getPath()));
+        assertTrue(new File(root, "a/2.mp3").createNewFile());
+        assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        watcher.close();
+        watcher.sync(index.getDirectories());
+        assertTrue(new File(root, "c").mkdir());
+        assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String path = events.poll(EVENT_TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertNotNull("No event from watcher.", path);
+        return path;
+    }
+
+    private LibraryIndex.Diff update(String changed) {
+        LibraryIndex.Diff diff = index.update(new File(changed), LibraryScanner.serial());
+        watcher.sync(index.getDirectories());
+        return diff;
+    }
+
+    /**
+     * Moves the directory's mtime back, so that changes made by the test
+     * are detected even with a coarse timestamp granularity.
+     */
+    private static void makeOld(File dir) {
+        assertTrue(dir.setLastModified(System.currentTimeMillis() - 60_000));
+    }
+
+}
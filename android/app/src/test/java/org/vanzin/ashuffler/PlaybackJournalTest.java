@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PlaybackJournalTest {
+
+    private static final int RECORD_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+    private PlaybackJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(tmp.newFolder("journal"), "journal");
+        journal = new PlaybackJournal(file);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(journal.last());
+        assertEquals(0, journal.size());
+
+        // Same for a journal file that exists but has no records.
+        journal.close();
+        journal = new PlaybackJournal(file);
+        assertNull(journal.last());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void testAppend() {
+        long start = System.currentTimeMillis();
+        journal.append(1, 1000);
+        journal.append(1, 6000);
+        journal.append(2, 500);
+
+        assertEquals(3, journal.size());
+        assertRecord(journal.last(), 2, 500);
+        assertTrue(journal.last().getTimestamp() >= start);
+        assertEquals(3L * RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void testReopen() {
+        journal.append(1, 1000);
+        journal.append(3, 2000);
+        PlaybackJournal.Record last = journal.last();
+
+        // Simulate the process being killed: the journal is not closed.
+        PlaybackJournal reopened = new PlaybackJournal(file);
+        try {
+            assertEquals(2, reopened.size());
+            assertRecord(reopened.last(), 3, 2000);
+            assertEquals(last.getTimestamp(), reopened.last().getTimestamp());
+
+            // New records go after the existing ones.
+            reopened.append(3, 7000);
+            assertEquals(3, reopened.size());
+        } finally {
+            reopened.close();
+        }
+
+        journal.close();
+        journal = new PlaybackJournal(file);
+        assertEquals(3, journal.size());
+        assertRecord(journal.last(), 3, 7000);
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        journal.append(1, 1000);
+        journal.append(1, 6000);
+        journal.close();
+
+        // Drop the end of the last record, as if the write was interrupted.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 7);
+        }
+
+        journal = new PlaybackJournal(file);
+        assertEquals(1, journal.size());
+        assertRecord(journal.last(), 1, 1000);
+        assertEquals(RECORD_SIZE, file.length());
+
+        // The torn data is gone, so new records are read back correctly.
+        journal.append(2, 3000);
+        journal.close();
+        journal = new PlaybackJournal(file);
+        assertEquals(2, journal.size());
+        assertRecord(journal.last(), 2, 3000);
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        journal.append(1, 1000);
+        journal.append(1, 6000);
+        journal.append(1, 11000);
+        journal.close();
+
+        // Corrupt the position of the second record; it and everything
+        // after it are discarded.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(RECORD_SIZE + 4);
+            raf.writeInt(12345);
+        }
+
+        journal = new PlaybackJournal(file);
+        assertEquals(1, journal.size());
+        assertRecord(journal.last(), 1, 1000);
+        assertEquals(RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void testReset() {
+        journal.append(1, 1000);
+        journal.append(2, 2000);
+        journal.reset();
+
+        assertNull(journal.last());
+        assertEquals(0, journal.size());
+        assertEquals(0L, file.length());
+
+        journal.append(4, 4000);
+        assertEquals(1, journal.size());
+        assertRecord(journal.last(), 4, 4000);
+
+        journal.close();
+        journal = new PlaybackJournal(file);
+        assertEquals(1, journal.size());
+        assertRecord(journal.last(), 4, 4000);
+    }
+
+    private static void assertRecord(PlaybackJournal.Record record, int trackId,
+        int position)
+    {
+        assertNotNull(record);
+        assertEquals(trackId, record.getTrackId());
+        assertEquals(position, record.getPosition());
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PlayerStateTest {
+
+    private static final String ROOT = "/storage/emulated/0/Music";
+
+    @Test
+    public void testCompactAfterPlayingAlbums() throws Exception {
+        List<String> folders = folders(4000);
+        PlayerState state = new PlayerState();
+        state.addFolders(folders);
+        int initialSize = StateStore.encode(state, PlayerState.CODEC).length;
+
+        // Play every album once; the table should not keep every track
+        // of every album played.
+        for (int i = 0; i < folders.size(); i++) {
+            state.setCurrentFolder(i);
+            state.setTracks(tracks(folders.get(i), 12));
+            state.setCurrentTrack(3);
+            state.compact();
+        }
+
+        int size = StateStore.encode(state, PlayerState.CODEC).length;
+        assertTrue("State grew from " + initialSize + " to " + size,
+            size < initialSize * 2);
+        assertEquals(folders, new ArrayList<>(state.getFolders()));
+        assertEquals(tracks(folders.get(folders.size() - 1), 12),
+            new ArrayList<>(state.getTracks()));
+        assertEquals(folders.get(folders.size() - 1) + "/03.mp3", state.currentTrack());
+    }
+
+    @Test
+    public void testCompactAfterRemovingFolders() throws Exception {
+        List<String> folders = folders(4000);
+        PlayerState state = new PlayerState();
+        state.addFolders(folders);
+        state.setCurrentFolder(0);
+        state.setTracks(tracks(folders.get(0), 12));
+        int initialSize = StateStore.encode(state, PlayerState.CODEC).length;
+
+        List<String> removed = folders.subList(folders.size() / 2, folders.size());
+        state.removeFolders(removed);
+        assertTrue(state.compact());
+
+        int size = StateStore.encode(state, PlayerState.CODEC).length;
+        assertTrue("State went from " + initialSize + " to " + size,
+            size < initialSize * 3 / 4);
+        assertEquals(folders.subList(0, folders.size() / 2),
+            new ArrayList<>(state.getFolders()));
+        assertEquals(-1, state.getFolders().indexOf(removed.get(0)));
+    }
+
+    @Test
+    public void testCompactKeepsUsedPaths() throws Exception {
+        PlayerState state = new PlayerState();
+        List<String> folders = folders(10);
+        state.addFolders(folders);
+
+        // Nothing to drop yet.
+        assertFalse(state.compact());
+
+        for (int i = 0; i < folders.size(); i++) {
+            state.setTracks(tracks(folders.get(i), 20));
+        }
+        state.setCurrentFolder(9);
+        state.setCurrentTrack(19);
+        String track = state.currentTrack();
+        int before = state.getPathCount();
+
+        assertTrue(state.compact());
+        assertTrue(state.getPathCount() < before);
+        assertEquals(track, state.currentTrack());
+        assertEquals(folders, new ArrayList<>(state.getFolders()));
+
+        // The compacted table still works for lookups and new paths, and
+        // survives a round trip through the codec.
+        state.addFolders(folders(11));
+        PlayerState copy = PlayerState.CODEC.read(
+            new DataInputStream(new ByteArrayInputStream(
+                strip(StateStore.encode(state, PlayerState.CODEC)))),
+            StateStore.VERSION);
+        assertEquals(new ArrayList<>(state.getFolders()), new ArrayList<>(copy.getFolders()));
+        assertEquals(track, copy.currentTrack());
+    }
+
+    static List<String> folders(int count) {
+        List<String> folders = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            folders.add(String.format("%s/Artist %d/Album %d", ROOT, i / 10, i));
+        }
+        return folders;
+    }
+
+    static List<String> tracks(String folder, int count) {
+        List<String> tracks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tracks.add(String.format("%s/%02d.mp3", folder, i));
+        }
+        return tracks;
+    }
+
+    /**
+     * Removes the store's header from encoded data.
+     */
+    private static byte[] strip(byte[] encoded) {
+        return Arrays.copyOfRange(encoded, 16, encoded.length);
+    }
+
+}
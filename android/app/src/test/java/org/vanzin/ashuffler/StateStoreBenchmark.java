@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares saving and loading the player state with the binary codec
+ * against the Java serialization used by older versions.
+ * <p>
+ * Not run as part of the unit tests. Usage:
+ *
+ * <pre>
+ *   StateStoreBenchmark [folders]
+ * </pre>
+ *
+ * The default is a library with 10,000 folders.
+ */
+public class StateStoreBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        List<String> folders = PlayerStateTest.folders(count);
+        PlayerState state = new PlayerState();
+        state.addFolders(folders);
+        state.setCurrentFolder(count / 2);
+        state.setTracks(PlayerStateTest.tracks(folders.get(count / 2), 12));
+
+        LegacyState legacy = new LegacyState();
+        legacy.folders.addAll(folders);
+        legacy.currentFolder = count / 2;
+        legacy.tracks.addAll(PlayerStateTest.tracks(folders.get(count / 2), 12));
+
+        System.out.printf("State: %d folders; codec: %d bytes, serialized: %d bytes.%n",
+            count, StateStore.encode(state, PlayerState.CODEC).length,
+            legacy.serializeAsPlayerState().length);
+
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            byte[] encoded = StateStore.encode(state, PlayerState.CODEC);
+            long codecSave = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            StateStore.decode(encoded, PlayerState.class, PlayerState.CODEC);
+            long codecLoad = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] serialized = legacy.serializeAsPlayerState();
+            long javaSave = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            StateStore.decode(serialized, PlayerState.class, PlayerState.CODEC);
+            long javaLoad = System.nanoTime() - start;
+
+            System.out.printf("codec save: %6d us, load: %6d us; " +
+                "serialization save: %6d us, load: %6d us%n",
+                micros(codecSave), micros(codecLoad), micros(javaSave), micros(javaLoad));
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class StateStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testPlayerState() throws Exception {
+        PlayerState state = newState();
+        PlayerState copy = roundTrip(state, PlayerState.class, PlayerState.CODEC);
+        assertSameState(state, copy);
+    }
+
+    @Test
+    public void testTrackInfo() throws Exception {
+        TrackInfo info = new TrackInfo("/music/a/01.mp3", "Title", null, "Artist", 1, -1,
+            300000);
+        info.setElapsedTime(12345);
+        TrackInfo copy = roundTrip(info, TrackInfo.class, TrackInfo.CODEC);
+        assertSameInfo(info, copy);
+    }
+
+    @Test
+    public void testLibraryIndex() throws Exception {
+        File root = tmp.newFolder("music");
+        LibraryScannerTest.createTree(root, 2, 3, 4);
+        LibraryIndex index = new LibraryIndex();
+        index.update(root, LibraryScanner.serial());
+
+        LibraryIndex copy = roundTrip(index, LibraryIndex.class, LibraryIndex.CODEC);
+        assertEquals(index.getDirectories(), copy.getDirectories());
+        assertEquals(index.getFolders(), copy.getFolders());
+        for (String folder : index.getFolders()) {
+            assertEquals(index.getTracks(folder), copy.getTracks(folder));
+        }
+
+        // Nothing changed on disk, so the loaded index is up to date.
+        assertFalse(copy.update(root, LibraryScanner.serial()).isChanged());
+    }
+
+    @Test
+    public void testLegacyPlayerState() throws Exception {
+        LegacyState legacy = new LegacyState();
+        legacy.folders.addAll(PlayerStateTest.folders(20));
+        legacy.currentFolder = 5;
+        legacy.tracks.addAll(PlayerStateTest.tracks(legacy.folders.get(5), 10));
+        legacy.currentTrack = 7;
+
+        PlayerState state = StateStore.decode(legacy.serializeAsPlayerState(),
+            PlayerState.class, PlayerState.CODEC);
+        assertEquals(legacy.folders, new ArrayList<>(state.getFolders()));
+        assertEquals(legacy.tracks, new ArrayList<>(state.getTracks()));
+        assertEquals(legacy.folders.get(5), state.currentFolder());
+        assertEquals(legacy.tracks.get(7), state.currentTrack());
+
+        // Once converted, it survives the binary format.
+        assertSameState(state, roundTrip(state, PlayerState.class, PlayerState.CODEC));
+    }
+
+    @Test
+    public void testLegacyTrackInfo() throws Exception {
+        TrackInfo info = new TrackInfo("/music/a/02.mp3", "Title", "Album", "Artist", 2, 1,
+            200000);
+        info.setElapsedTime(500);
+        TrackInfo copy = StateStore.decode(serialize(info), TrackInfo.class,
+            TrackInfo.CODEC);
+        assertSameInfo(info, copy);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadChecksum() throws Exception {
+        byte[] data = StateStore.encode(newState(), PlayerState.CODEC);
+        data[data.length - 1] ^= 1;
+        StateStore.decode(data, PlayerState.class, PlayerState.CODEC);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadMagic() throws Exception {
+        byte[] data = StateStore.encode(newState(), PlayerState.CODEC);
+        data[0] ^= 1;
+        StateStore.decode(data, PlayerState.class, PlayerState.CODEC);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] data = StateStore.encode(newState(), PlayerState.CODEC);
+        StateStore.decode(Arrays.copyOf(data, data.length - 10), PlayerState.class,
+            PlayerState.CODEC);
+    }
+
+    @Test
+    public void testBadLength() throws Exception {
+        // The length is not covered by the checksum; a corrupt one should not
+        // cause a huge allocation.
+        byte[] data = StateStore.encode(newState(), PlayerState.CODEC);
+        ByteBuffer.wrap(data).putInt(8, Integer.MAX_VALUE - 8);
+        try {
+            StateStore.decode(data, PlayerState.class, PlayerState.CODEC);
+            fail("Should have failed to decode.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid data length"));
+        }
+
+        ByteBuffer.wrap(data).putInt(8, -1);
+        try {
+            StateStore.decode(data, PlayerState.class, PlayerState.CODEC);
+            fail("Should have failed to decode.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid data length"));
+        }
+    }
+
+    static PlayerState newState() {
+        PlayerState state = new PlayerState();
+        List<String> folders = PlayerStateTest.folders(100);
+        state.addFolders(folders);
+        state.setCurrentFolder(42);
+        state.setTracks(PlayerStateTest.tracks(folders.get(42), 12));
+        state.setCurrentTrack(3);
+        return state;
+    }
+
+    private static <T> T roundTrip(T obj, Class<T> klass, StateStore.Codec<T> codec)
+        throws Exception
+    {
+        return StateStore.decode(StateStore.encode(obj, codec), klass, codec);
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void assertSameState(PlayerState expected, PlayerState actual) {
+        assertEquals(new ArrayList<>(expected.getFolders()), new ArrayList<>(actual.getFolders()));
+        assertEquals(new ArrayList<>(expected.getTracks()), new ArrayList<>(actual.getTracks()));
+        assertEquals(expected.getCurrentFolder(), actual.getCurrentFolder());
+        assertEquals(expected.getCurrentTrack(), actual.getCurrentTrack());
+        assertEquals(expected.currentTrackId(), actual.currentTrackId());
+    }
+
+    private static void assertSameInfo(TrackInfo expected, TrackInfo actual) {
+        assertEquals(expected.getPath(), actual.getPath());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getAlbum(), actual.getAlbum());
+        assertEquals(expected.getArtist(), actual.getArtist());
+        assertEquals(expected.getTrackNumber(), actual.getTrackNumber());
+        assertEquals(expected.getDiscNumber(), actual.getDiscNumber());
+        assertEquals(expected.getDuration(), actual.getDuration());
+        assertEquals(expected.getElapsedTime(), actual.getElapsedTime());
+    }
+
+}
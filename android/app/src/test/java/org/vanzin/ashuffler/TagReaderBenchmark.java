@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long the tag reader takes on a synthetic corpus of MP3,
+ * FLAC and MP4 files with embedded pictures, compared to reading each
+ * file in full (the minimum cost of a parser that doesn't seek past the
+ * data it doesn't need).
+ * <p>
+ * Not run as part of the unit tests. Usage:
+ *
+ * <pre>
+ *   TagReaderBenchmark [files per format] [picture KiB] [audio KiB]
+ * </pre>
+ *
+ * The defaults create 100 files of each format, with 256 KiB pictures
+ * and 2 MiB of audio data.
+ */
+public class TagReaderBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int pictureSize = (args.length > 1 ? Integer.parseInt(args[1]) : 256) * 1024;
+        int audioSize = (args.length > 2 ? Integer.parseInt(args[2]) : 2048) * 1024;
+
+        Path root = Files.createTempDirectory("tag-bench");
+        try {
+            for (int i = 0; i < count; i++) {
+                String title = "Track " + i;
+                write(root.resolve(i + ".mp3"),
+                    TagReaderTest.mp3(title, pictureSize, audioSize));
+                write(root.resolve(i + ".flac"), TagReaderTest.concat(
+                    TagReaderTest.flac(44100, 44100L * 200, pictureSize, "TITLE=" + title,
+                        "ALBUM=Album", "ARTIST=Artist", "TRACKNUMBER=" + i),
+                    new byte[audioSize]));
+                write(root.resolve(i + ".m4a"), TagReaderTest.mp4(title, pictureSize, audioSize,
+                    44100, 44100L * 150, i % 2 == 0));
+            }
+
+            List<File> files;
+            try (Stream<Path> paths = Files.list(root)) {
+                files = paths.map(Path::toFile).sorted().collect(Collectors.toList());
+            }
+            System.out.printf("Corpus: %d files.%n", files.size());
+
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                int parsed = 0;
+                for (File f : files) {
+                    if (TagReader.read(f.getPath()) != null) {
+                        parsed++;
+                    }
+                }
+                long tags = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long bytes = 0;
+                for (File f : files) {
+                    bytes += Files.readAllBytes(f.toPath()).length;
+                }
+                long full = System.nanoTime() - start;
+
+                System.out.printf("tags: %d/%d files, %6d us/file; full read: %6d us/file " +
+                    "(%d MiB)%n", parsed, files.size(), perFile(tags, files),
+                    perFile(full, files), bytes >> 20);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static long perFile(long nanos, List<File> files) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) / files.size();
+    }
+
+    private static void write(Path path, byte[] data) throws IOException {
+        Files.write(path, data);
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2022 Marcelo Vanzin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.vanzin.ashuffler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class TagReaderTest {
+
+    // MPEG-1 layer III, 128 kbps, 44.1 kHz, joint stereo.
+    private static final int MPEG_HEADER = 0xFFFB9064;
+    private static final int MPEG_SAMPLES_PER_FRAME = 1152;
+    private static final int MPEG_SAMPLE_RATE = 44100;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testId3v23() throws Exception {
+        // Extended header: size (not including itself), flags, padding size.
+        byte[] ext = { 0, 0, 0, 6, 0, 0, 0, 0, 0, 0 };
+        byte[] frames = concat(
+            id3Frame(3, "TIT2", 0, id3Text(1, "T\u00edtulo", utf16le())),
+            id3Frame(3, "TALB", 0, id3Text(0, "Album")),
+            // Compressed: the contents can't be read as text.
+            id3Frame(3, "TALB", 0x0080, new byte[] { 0, 0, 0, 10, 'x', 'y' }),
+            id3Frame(3, "TPE1", 0, id3Text(0, "Artist")),
+            id3Frame(3, "TRCK", 0, id3Text(0, "3/12")),
+            id3Frame(3, "TPOS", 0, id3Text(0, "1/2")),
+            id3Frame(3, "APIC", 0, new byte[1024]));
+        byte[] tag = id3Tag(3, 0x40, concat(ext, frames), 512);
+
+        TrackInfo info = read(concat(tag, mpegAudio(4096, "Xing", 1000)));
+        assertInfo(info, "T\u00edtulo", "Album", "Artist", 3, 1, mpegDuration(1000));
+    }
+
+    @Test
+    public void testId3v24() throws Exception {
+        // Extended header: syncsafe size (including itself), flag bytes.
+        byte[] ext = { 0, 0, 0, 6, 1, 0 };
+        byte[] frames = concat(
+            id3Frame(4, "TIT2", 0, id3Text(3, "Caf\u00e9")),
+            // Data length indicator, which is not handled.
+            id3Frame(4, "TIT2", 0x0001, concat(new byte[] { 0, 0, 0, 5 }, id3Text(0, "Bad"))),
+            id3Frame(4, "TALB", 0, id3Text(2, "\u00c1lbum", StandardCharsets.UTF_16BE)),
+            // Status flags don't affect the contents.
+            id3Frame(4, "TPE1", 0x1000, id3Text(3, "Artist\0Other")),
+            id3Frame(4, "TRCK", 0, id3Text(3, "7")),
+            id3Frame(4, "APIC", 0, new byte[1024]));
+        // Footer, and no padding.
+        byte[] tag = id3Tag(4, 0x50, concat(ext, frames), 0);
+
+        int audioSize = 16000;
+        TrackInfo info = read(concat(tag, mpegAudio(audioSize, null, 0)));
+        assertInfo(info, "Caf\u00e9", "\u00c1lbum", "Artist", 7, -1, audioSize * 8 / 128);
+    }
+
+    @Test
+    public void testId3v22() throws Exception {
+        byte[] frames = concat(
+            id3Frame(2, "TT2", 0, id3Text(0, "Old")),
+            id3Frame(2, "TAL", 0, id3Text(0, "Album")),
+            id3Frame(2, "TP1", 0, id3Text(1, "Artist", utf16le())),
+            id3Frame(2, "TRK", 0, id3Text(0, "2")),
+            id3Frame(2, "TPA", 0, id3Text(0, "3")),
+            id3Frame(2, "TLE", 0, id3Text(0, "183000")));
+        byte[] tag = id3Tag(2, 0, frames, 128);
+
+        // The length frame takes precedence over the audio stream.
+        TrackInfo info = read(concat(tag, mpegAudio(4096, "Xing", 1000)));
+        assertInfo(info, "Old", "Album", "Artist", 2, 3, 183000);
+    }
+
+    @Test
+    public void testMpegDuration() throws Exception {
+        // No tags, so the defaults are used.
+        assertInfo(read(mpegAudio(4096, "Xing", 5000)), null, null, null, 1, -1,
+            mpegDuration(5000));
+        assertInfo(read(mpegAudio(4096, "Info", 300)), null, null, null, 1, -1,
+            mpegDuration(300));
+        assertInfo(read(mpegAudio(4096, "VBRI", 2000)), null, null, null, 1, -1,
+            mpegDuration(2000));
+        assertInfo(read(mpegAudio(32000, null, 0)), null, null, null, 1, -1, 2000);
+
+        // Some junk between the tag and the first frame.
+        byte[] tag = id3Tag(3, 0, id3Frame(3, "TIT2", 0, id3Text(0, "Title")), 0);
+        TrackInfo info = read(concat(tag, new byte[100], mpegAudio(4096, "Xing", 1000)));
+        assertInfo(info, "Title", null, null, 1, -1, mpegDuration(1000));
+    }
+
+    @Test
+    public void testFlac() throws Exception {
+        byte[] data = flac(44100, 44100L * 200, 1024,
+            "title=Flac", "ALBUM=Album", "ARTIST=Artist", "TRACKNUMBER=4/10",
+            "DISCNUMBER=2", "COMMENT=Ignored", "broken");
+        assertInfo(read(data), "Flac", "Album", "Artist", 4, 2, 200000);
+    }
+
+    @Test
+    public void testMp4() throws Exception {
+        byte[] data = mp4("M4A", 1024, 8192, 44100, 44100L * 150, false);
+        assertInfo(read(data), "M4A", "Album", "Artist", 9, 1, 150000);
+    }
+
+    @Test
+    public void testMp4LargeAtoms() throws Exception {
+        // 64-bit movie header, media data with a 64-bit size, and a meta
+        // atom without version and flags.
+        byte[] data = mp4("Large", 1024, 8192, 1000, 3_000_000L, true);
+        assertInfo(read(data), "Large", "Album", "Artist", 9, 1, 3_000_000);
+    }
+
+    @Test
+    public void testInvalidFiles() throws Exception {
+        assertNull(read(new byte[0]));
+        assertNull(read("ID3".getBytes(StandardCharsets.US_ASCII)));
+        byte[] text = new byte[4096];
+        Arrays.fill(text, (byte) 'x');
+        assertNull(read(text));
+
+        // Unsynchronised tag.
+        byte[] frames = id3Frame(3, "TIT2", 0, id3Text(0, "Title"));
+        assertNull(read(concat(id3Tag(3, 0x80, frames, 0), mpegAudio(4096, "Xing", 1000))));
+
+        // Unknown tag version.
+        assertNull(read(concat(id3Tag(5, 0, frames, 0), mpegAudio(4096, "Xing", 1000))));
+
+        // Tags but no audio, so no duration.
+        assertNull(read(id3Tag(3, 0, frames, 1024)));
+    }
+
+    @Test
+    public void testTruncatedFiles() throws Exception {
+        byte[] frames = concat(
+            id3Frame(3, "TIT2", 0, id3Text(0, "Title")),
+            id3Frame(3, "APIC", 0, new byte[8192]));
+        byte[] mp3 = concat(id3Tag(3, 0, frames, 0), mpegAudio(4096, "Xing", 1000));
+        byte[] flac = flac(44100, 44100L * 200, 8192, "TITLE=Flac");
+        byte[] mp4 = mp4("M4A", 8192, 8192, 44100, 44100L * 150, false);
+
+        for (byte[] data : new byte[][] { mp3, flac, mp4 }) {
+            for (int length : new int[] { 4, 11, 12, 20, 100, 5000 }) {
+                assertNull("Length " + length, read(Arrays.copyOf(data, length)));
+            }
+        }
+
+        // Garbage after a valid header.
+        for (byte[] data : new byte[][] { mp3, flac, mp4 }) {
+            byte[] garbage = Arrays.copyOf(data, data.length);
+            for (int i = 12; i < garbage.length; i++) {
+                garbage[i] = (byte) (i * 31);
+            }
+            assertNull(read(garbage));
+        }
+    }
+
+    private TrackInfo read(byte[] data) throws IOException {
+        File file = tmp.newFile();
+        Files.write(file.toPath(), data);
+        return TagReader.read(file.getAbsolutePath());
+    }
+
+    private static void assertInfo(TrackInfo info, String title, String album, String artist,
+        int track, int disc, int duration)
+    {
+        assertNotNull(info);
+        assertEquals(title, info.getTitle());
+        assertEquals(album, info.getAlbum());
+        assertEquals(artist, info.getArtist());
+        assertEquals(track, info.getTrackNumber());
+        assertEquals(disc, info.getDiscNumber());
+        assertEquals(duration, info.getDuration());
+    }
+
+    private static int mpegDuration(int frames) {
+        return (int) ((long) frames * MPEG_SAMPLES_PER_FRAME * 1000 / MPEG_SAMPLE_RATE);
+    }
+
+    private static Charset utf16le() {
+        return StandardCharsets.UTF_16LE;
+    }
+
+    /**
+     * Creates an MP3 file like the ones found in a typical library: an
+     * ID3v2.3 tag with an embedded picture, followed by VBR audio.
+     */
+    static byte[] mp3(String title, int pictureSize, int audioSize) {
+        byte[] frames = concat(
+            id3Frame(3, "TIT2", 0, id3Text(1, title, utf16le())),
+            id3Frame(3, "TALB", 0, id3Text(0, "Album")),
+            id3Frame(3, "TPE1", 0, id3Text(0, "Artist")),
+            id3Frame(3, "TRCK", 0, id3Text(0, "1/10")),
+            id3Frame(3, "APIC", 0, new byte[pictureSize]));
+        return concat(id3Tag(3, 0, frames, 1024), mpegAudio(audioSize, "Xing", 10000));
+    }
+
+    static byte[] id3Tag(int version, int flags, byte[] contents, int padding) {
+        ByteBuffer buf = ByteBuffer.allocate(10 + contents.length + padding +
+            ((flags & 0x10) != 0 ? 10 : 0));
+        buf.put("ID3".getBytes(StandardCharsets.US_ASCII))
+            .put((byte) version)
+            .put((byte) 0)
+            .put((byte) flags)
+            .putInt(syncsafe(contents.length + padding))
+            .put(contents)
+            .put(new byte[padding]);
+        if ((flags & 0x10) != 0) {
+            buf.put("3DI".getBytes(StandardCharsets.US_ASCII))
+                .put((byte) version)
+                .put((byte) 0)
+                .put((byte) flags)
+                .putInt(syncsafe(contents.length + padding));
+        }
+        return buf.array();
+    }
+
+    static byte[] id3Frame(int version, String id, int flags, byte[] data) {
+        byte[] idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        if (version == 2) {
+            ByteBuffer buf = ByteBuffer.allocate(6 + data.length);
+            buf.put(idBytes)
+                .put((byte) (data.length >>> 16))
+                .putShort((short) data.length)
+                .put(data);
+            return buf.array();
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(10 + data.length);
+        buf.put(idBytes)
+            .putInt(version == 4 ? syncsafe(data.length) : data.length)
+            .putShort((short) flags)
+            .put(data);
+        return buf.array();
+    }
+
+    static byte[] id3Text(int encoding, String text) {
+        return id3Text(encoding, text, encoding == 0 ? StandardCharsets.ISO_8859_1 :
+            StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a text frame. UTF-16 text (encoding 1) gets a byte order
+     * mark matching the given charset.
+     */
+    static byte[] id3Text(int encoding, String text, Charset cs) {
+        byte[] bom = new byte[0];
+        if (encoding == 1) {
+            bom = cs == StandardCharsets.UTF_16LE ? new byte[] { (byte) 0xFF, (byte) 0xFE } :
+                new byte[] { (byte) 0xFE, (byte) 0xFF };
+        }
+        return concat(new byte[] { (byte) encoding }, bom, text.getBytes(cs));
+    }
+
+    /**
+     * Creates MPEG audio data, with a Xing / Info / VBRI header in the
+     * first frame if the header type is not null.
+     */
+    static byte[] mpegAudio(int size, String header, int frames) {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MPEG_HEADER);
+        if (header != null) {
+            // After the side info for a stereo MPEG-1 frame.
+            buf.position(36);
+            buf.put(header.getBytes(StandardCharsets.US_ASCII));
+            if (header.equals("VBRI")) {
+                // Version, delay, quality, byte count, frame count.
+                buf.putShort((short) 1).putShort((short) 0).putShort((short) 75)
+                    .putInt(size).putInt(frames);
+            } else {
+                // Flags: frames, bytes, TOC and quality are present.
+                buf.putInt(0xF).putInt(frames).putInt(size);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Creates a FLAC file with the given stream info, comments and
+     * picture.
+     */
+    static byte[] flac(int sampleRate, long samples, int pictureSize, String... comments) {
+        ByteBuffer streamInfo = ByteBuffer.allocate(34);
+        // Block sizes and frame sizes are not used.
+        streamInfo.position(10);
+        long packed = ((long) sampleRate << 44) | (1L << 41) | (15L << 36) | samples;
+        streamInfo.putLong(packed);
+
+        ByteArrayOutputStream vc = new ByteArrayOutputStream();
+        byte[] vendor = "reference libFLAC".getBytes(StandardCharsets.UTF_8);
+        writeLE(vc, vendor.length);
+        vc.write(vendor, 0, vendor.length);
+        writeLE(vc, comments.length);
+        for (String c : comments) {
+            byte[] bytes = c.getBytes(StandardCharsets.UTF_8);
+            writeLE(vc, bytes.length);
+            vc.write(bytes, 0, bytes.length);
+        }
+
+        return concat(
+            "fLaC".getBytes(StandardCharsets.US_ASCII),
+            flacBlock(0, streamInfo.array(), false),
+            flacBlock(4, vc.toByteArray(), false),
+            flacBlock(6, new byte[pictureSize], false),
+            flacBlock(1, new byte[512], true),
+            new byte[4096]);
+    }
+
+    /**
+     * Creates an MP4 file with the media data before the movie atom, as
+     * written by most encoders.
+     *
+     * @param large Whether to use 64-bit atom sizes and movie header.
+     */
+    static byte[] mp4(String title, int pictureSize, int audioSize, int timescale,
+        long duration, boolean large)
+    {
+        ByteBuffer mvhd = ByteBuffer.allocate(large ? 112 : 100);
+        if (large) {
+            mvhd.put((byte) 1).position(20);
+            mvhd.putInt(timescale).putLong(duration);
+        } else {
+            mvhd.position(12);
+            mvhd.putInt(timescale).putInt((int) duration);
+        }
+
+        byte[] ilst = atom("ilst",
+            mp4Item("\u00a9nam", 1, title.getBytes(StandardCharsets.UTF_8)),
+            mp4Item("\u00a9alb", 1, "Album".getBytes(StandardCharsets.UTF_8)),
+            mp4Item("\u00a9ART", 1, "Artist".getBytes(StandardCharsets.UTF_8)),
+            mp4Item("trkn", 0, new byte[] { 0, 0, 0, 9, 0, 12, 0, 0 }),
+            mp4Item("disk", 0, new byte[] { 0, 0, 0, 1, 0, 1 }),
+            mp4Item("covr", 13, new byte[pictureSize]));
+        byte[] hdlr = atom("hdlr", new byte[25]);
+        byte[] meta = large ? atom("meta", hdlr, ilst) : atom("meta", new byte[4], hdlr, ilst);
+        byte[] moov = atom("moov",
+            atom("mvhd", mvhd.array()),
+            atom("trak", new byte[2048]),
+            atom("udta", meta));
+
+        byte[] audio = new byte[audioSize];
+        byte[] mdat;
+        if (large) {
+            ByteBuffer buf = ByteBuffer.allocate(16 + audio.length);
+            buf.putInt(1).put(type("mdat")).putLong(buf.capacity()).put(audio);
+            mdat = buf.array();
+        } else {
+            mdat = atom("mdat", audio);
+        }
+
+        return concat(atom("ftyp", "M4A \0\0\0\0".getBytes(StandardCharsets.US_ASCII)), mdat,
+            moov);
+    }
+
+    static byte[] mp4Item(String type, int kind, byte[] value) {
+        ByteBuffer data = ByteBuffer.allocate(8 + value.length);
+        data.putInt(kind).putInt(0).put(value);
+        return atom(type, atom("data", data.array()));
+    }
+
+    static byte[] atom(String type, byte[]... contents) {
+        byte[] body = concat(contents);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(buf.capacity()).put(type(type)).put(body);
+        return buf.array();
+    }
+
+    static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] a : arrays) {
+            out.write(a, 0, a.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] flacBlock(int type, byte[] data, boolean last) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + data.length);
+        buf.putInt((last ? 0x80000000 : 0) | (type << 24) | data.length).put(data);
+        return buf.array();
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeLE(ByteArrayOutputStream out, int value) {
+        byte[] bytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value)
+            .array();
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static int syncsafe(int value) {
+        return ((value >>> 21) & 0x7F) << 24 |
+            ((value >>> 14) & 0x7F) << 16 |
+            ((value >>> 7) & 0x7F) << 8 |
+            (value & 0x7F);
+    }
+
+}